@@ -0,0 +1,144 @@
+package dk.kombit.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe JAXB codec for a single bound type.
+ *
+ * The {@link JAXBContext} is created once per type and shared by all threads, while {@link Marshaller} and
+ * {@link Unmarshaller} instances (which are not thread-safe) are kept per thread and reused between calls.
+ * Use {@link #forType(Class)} to obtain the codec for a type, and {@link #warmUp(Class...)} at startup to
+ * move the cost of building contexts out of the message path.
+ */
+public final class JaxbCodec<T> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JaxbCodec.class);
+
+	private static final ConcurrentMap<Class<?>, JaxbCodec<?>> CODECS = new ConcurrentHashMap<Class<?>, JaxbCodec<?>>();
+
+	private final Class<T> type;
+	private final JAXBContext context;
+	private final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>();
+	private final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>();
+
+	private JaxbCodec(Class<T> type) throws JAXBException {
+		this.type = type;
+		long start = System.nanoTime();
+		this.context = JAXBContext.newInstance(type);
+		LOGGER.debug("Created JAXBContext for "+type.getName()+" in "+((System.nanoTime()-start)/1000000)+" ms");
+	}
+
+	/**
+	 * Returns the shared codec for a given type, creating its {@link JAXBContext} on first use.
+	 * @param type the JAXB bound class
+	 * @return the codec for type
+	 * @throws JAXBException thrown if a context cannot be created for type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> JaxbCodec<T> forType(Class<T> type) throws JAXBException {
+		JaxbCodec<T> codec = (JaxbCodec<T>) CODECS.get(type);
+		if (codec == null) {
+			JaxbCodec<T> created = new JaxbCodec<T>(type);
+			codec = (JaxbCodec<T>) CODECS.putIfAbsent(type, created);
+			if (codec == null) {
+				codec = created;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Creates the codecs for the given types and primes a marshaller and unmarshaller on the calling thread.
+	 * @param types the JAXB bound classes to prepare
+	 * @throws JAXBException thrown if a context cannot be created for one of the types
+	 */
+	public static void warmUp(Class<?>... types) throws JAXBException {
+		for (Class<?> type : types) {
+			JaxbCodec<?> codec = forType(type);
+			codec.marshaller();
+			codec.unmarshaller();
+		}
+	}
+
+	/**
+	 * @return the type handled by this codec
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Converts the contents of a Source to an instance of the bound type.
+	 * @param s Source to be read
+	 * @return Object of the bound type
+	 * @throws JAXBException
+	 */
+	public T unmarshal(Source s) throws JAXBException {
+		return unmarshaller().unmarshal(s, type).getValue();
+	}
+
+	/**
+	 * Converts an XML document held in a byte array to an instance of the bound type, without copying it to a String.
+	 * @param b the XML document, the encoding is taken from the XML declaration (default UTF-8)
+	 * @return Object of the bound type
+	 * @throws JAXBException
+	 */
+	public T unmarshal(byte[] b) throws JAXBException {
+		return unmarshal(new StreamSource(new ByteArrayInputStream(b)));
+	}
+
+	/**
+	 * Serializes an object wrapped in a root element with the given name to a Writer.
+	 * @param obj Object to be marshalled
+	 * @param wr Writer used for outputting the marshalled object
+	 * @param rootName the name of the root element as a QName
+	 * @throws JAXBException
+	 */
+	public void marshal(T obj, Writer wr, QName rootName) throws JAXBException {
+		marshaller().marshal(new JAXBElement<T>(rootName, type, obj), wr);
+	}
+
+	/**
+	 * Serializes an object wrapped in a root element with the given name to an OutputStream (UTF-8).
+	 * @param obj Object to be marshalled
+	 * @param os OutputStream used for outputting the marshalled object
+	 * @param rootName the name of the root element as a QName
+	 * @throws JAXBException
+	 */
+	public void marshal(T obj, OutputStream os, QName rootName) throws JAXBException {
+		marshaller().marshal(new JAXBElement<T>(rootName, type, obj), os);
+	}
+
+	private Marshaller marshaller() throws JAXBException {
+		Marshaller m = marshallers.get();
+		if (m == null) {
+			m = context.createMarshaller();
+			marshallers.set(m);
+		}
+		return m;
+	}
+
+	private Unmarshaller unmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshallers.get();
+		if (u == null) {
+			u = context.createUnmarshaller();
+			unmarshallers.set(u);
+		}
+		return u;
+	}
+}
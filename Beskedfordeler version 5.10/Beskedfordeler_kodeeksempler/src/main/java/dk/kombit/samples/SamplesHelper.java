@@ -1,29 +1,23 @@
 package dk.kombit.samples;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.security.KeyStore;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Base64;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -69,6 +63,34 @@ public class SamplesHelper {
 	//Example: 19438414
 	public static String requestCVRNumber = "12345678";
 
+	//Additional municipalities to get tokens for at startup, in parallel with at most prefetchConcurrency calls at a time
+	public static List<String> prefetchCVRNumbers = new ArrayList<String>();
+	public static int prefetchConcurrency = 16;
+
+	//Security Token Service client: timeouts, pooled connections per host and logging of requests/responses
+	public static int stsConnectTimeoutMsecs = 10000;
+	public static int stsReceiveTimeoutMsecs = 30000;
+	public static int stsMaxConnections = 20;
+	public static boolean stsWireLogging = false;
+
+	//Renew tokens in the background this many seconds before they expire (0 = disabled)
+	public static int tokenRefreshMarginSeconds = 0;
+
+	//File to keep tokens in between runs (null = tokens are only cached in memory)
+	public static String tokenCacheFile = null;
+
+	// Message journals: when records are forced to disk ("message", "<n>ms" or every <n> records), and when a new segment is started
+	public static String journalSync = "100ms";
+	public static int journalSegmentMBytes = 64;
+	public static int journalSegmentMinutes = 60;
+	// Compress journal segments with a dictionary trained from the sample messages in this directory (null = the test messages)
+	public static boolean journalCompress = false;
+	public static String journalSamplesDirectory = null;
+	// Reopening lost AMQP channels: first and longest wait between attempts, and when to give up
+	public static long recoveryBackoffMsecs = 500;
+	public static long recoveryMaxBackoffMsecs = 30000;
+	public static int recoveryTimeoutSeconds = 300;
+
 	//Location of keystoreFile
 	//Example: src/main/resources/token/test-client.jks
 	public static String keyStoreFile = "src/main/resources/KOMBIT AS - KOMBIT_STS_BF_TEST_2.jks";
@@ -111,57 +133,34 @@ public class SamplesHelper {
     }
 
     /**
-     * @return the first certificate found in the configured keystore
+     * @return the first certificate found in the configured keystore (loaded once, see {@link SecurityContext})
      */
     public String getCertificate() {
-    	try {
-			KeyStore ksKeys = createKeyStoreForKeys();
-			Enumeration<String> aliases = ksKeys.aliases();
-			while (aliases.hasMoreElements()) {
-				String alias = aliases.nextElement();
-				byte[] certificateEncodedBytes = ksKeys.getCertificate(alias).getEncoded();
-				return new String(Base64.getEncoder().encode(certificateEncodedBytes));
-			}
-		} catch (Exception e) {
-			LOGGER.error("Caught exception while instantiating keystore",e);
-			throw new RuntimeException(e);
-		}
-
-		throw new RuntimeException("No certificate found in "+keyStoreFile);
+		return SecurityContext.get().getCertificate();
 	}
 
 	/**
-	 * Creates a Java {@link KeyManager} instance based on keystore and password above.
-	 * @return instance of {@link KeyManager}
+	 * Builds the token requests for {@link #requestCVRNumber} and {@link #prefetchCVRNumbers} to a service.
+	 * @param serviceEntityId the service's entity ID (URI) to request tokens for
+	 * @return list of {@link TokenManager.TokenRequest}, one per distinct CVR number
 	 */
-	public static KeyManager[] getKeyManagers() {
-		try {
-			KeyStore ksKeys = createKeyStoreForKeys();
-			// KeyManagers decide which key material to use
-			KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-			kmf.init(ksKeys, keyStorePassword.toCharArray());
-			return kmf.getKeyManagers();
-		} catch (Exception e) {
-			LOGGER.error("Caught exception while instantiating keystore",e);
-			throw new RuntimeException(e);
+	public static List<TokenManager.TokenRequest> getTokenRequests(String serviceEntityId) {
+		Set<String> cvrs = new LinkedHashSet<String>();
+		cvrs.add(requestCVRNumber);
+		cvrs.addAll(prefetchCVRNumbers);
+		List<TokenManager.TokenRequest> requests = new ArrayList<TokenManager.TokenRequest>();
+		for (String cvr : cvrs) {
+			requests.add(new TokenManager.TokenRequest(cvr, serviceEntityId));
 		}
+		return requests;
 	}
 
 	/**
-	 * Creates a {@link KeyStore} instance based on keystore and password above
-	 * @return instance of {@link KeyStore}
+	 * Returns the Java {@link KeyManager} instances for the keystore and password above (loaded once, see {@link SecurityContext}).
+	 * @return instance of {@link KeyManager}
 	 */
-	private static KeyStore createKeyStoreForKeys() {
-		try {
-			// First initialize the key and trust material
-			KeyStore ksKeys = KeyStore.getInstance("JKS");
-			char[] passphrase = keyStorePassword.toCharArray();
-			ksKeys.load(new FileInputStream(keyStoreFile), passphrase);
-			return ksKeys;
-		} catch (Exception e) {
-			LOGGER.error("Caught exception while instantiating keystore",e);
-			throw new RuntimeException(e);
-		}
+	public static KeyManager[] getKeyManagers() {
+		return SecurityContext.get().getKeyManagers();
 	}
 
     /**
@@ -177,6 +176,19 @@ public class SamplesHelper {
         return unmarshal(cl, new StringReader(s));
     }
 
+    /**
+     * Convert a byte array containing an XML document to an object of a given class.
+     *
+     * @param cl Type of object
+     * @param b Input bytes, the encoding is taken from the XML declaration (default UTF-8)
+     * @return Object of the given type
+     * @throws JAXBException
+     */
+    public static <T> T unmarshal(Class<T> cl, byte[] b) throws JAXBException
+    {
+        return JaxbCodec.forType(cl).unmarshal(b);
+    }
+
     /**
      * Convert the contents of a Reader to an object of a given class.
      *
@@ -199,9 +211,7 @@ public class SamplesHelper {
      */
     public static <T> T unmarshal(Class<T> cl, Source s) throws JAXBException
     {
-        JAXBContext ctx = JAXBContext.newInstance(cl);
-        Unmarshaller u = ctx.createUnmarshaller();
-        return u.unmarshal(s, cl).getValue();
+        return JaxbCodec.forType(cl).unmarshal(s);
     }
 
     /**
@@ -227,13 +237,11 @@ public class SamplesHelper {
      * @param rootName the name of the root element as a QName
      * @throws JAXBException
      */
+    @SuppressWarnings("unchecked")
     public static <T> void marshal(T obj, Writer wr, QName rootName) throws JAXBException
     {
-        JAXBContext ctx = JAXBContext.newInstance(obj.getClass());
-        Marshaller m = ctx.createMarshaller();
-//        @SuppressWarnings("rawtypes")
-        JAXBElement<?> jaxbElement = new JAXBElement(rootName, obj.getClass(), obj);
-		m.marshal(jaxbElement, wr);
+        JaxbCodec<T> codec = (JaxbCodec<T>) JaxbCodec.forType(obj.getClass());
+        codec.marshal(obj, wr, rootName);
     }
 
     /**
@@ -271,27 +279,11 @@ public class SamplesHelper {
     }
 
     /**
-     * Returns a trustmanager to use for establing a secured AMQP connection
+     * Returns a trustmanager to use for establing a secured AMQP connection (loaded once, see {@link SecurityContext})
      * @return array of {@link TrustManager} to be used for securing AMQP connection
      */
     public static TrustManager[] getTrustManagers() {
-        TrustManagerFactory tmf = null;
-		try {
-			tmf = TrustManagerFactory.getInstance("SunX509", "SunJSSE");
-		} catch (Exception e) {
-			LOGGER.error("Caught exception while instantiating TrustManagerFactory", e);
-			throw new RuntimeException(e);
-		}
-	    try {
-			KeyStore tsKeys = KeyStore.getInstance("JKS");
-			char[] passphrase = trustStorePassword.toCharArray();
-			tsKeys.load(new FileInputStream(trustStoreFile), passphrase);
-			tmf.init(tsKeys);
-		} catch (Exception e) {
-			LOGGER.error("Caught exception while initializing TrustManagerFactory", e);
-			throw new RuntimeException(e);
-		}
-        return tmf.getTrustManagers();
+        return SecurityContext.get().getTrustManagers();
     }
 
     /**
@@ -337,6 +329,118 @@ public class SamplesHelper {
     				LOGGER.error("Insufficient arguments to option "+args[i]);
     				parseOk = false;
     			}
+    		} else if ("-tokenrefresh".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				tokenRefreshMarginSeconds = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-prefetchcvr".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				for (String cvr : args[i].split(",")) {
+    					if (!cvr.trim().isEmpty()) {
+    						prefetchCVRNumbers.add(cvr.trim());
+    					}
+    				}
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-prefetchconcurrency".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				prefetchConcurrency = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-ststimeout".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				stsReceiveTimeoutMsecs = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-stsconnections".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				stsMaxConnections = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-stslogging".equals(args[i])) {
+    			stsWireLogging = true;
+    		} else if ("-tokencache".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				tokenCacheFile = args[i];
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-journalsync".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				journalSync = args[i];
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-journalsegment".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				journalSegmentMBytes = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-journalrotate".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				journalSegmentMinutes = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-journalcompress".equals(args[i])) {
+    			journalCompress = true;
+    		} else if ("-journalsamples".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				journalSamplesDirectory = args[i];
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-recoverybackoff".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				recoveryBackoffMsecs = Long.parseLong(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-recoverymaxbackoff".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				recoveryMaxBackoffMsecs = Long.parseLong(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
+    		} else if ("-recoverytimeout".equals(args[i])) {
+    			if (i < args.length-1) {
+    				i++;
+    				recoveryTimeoutSeconds = Integer.parseInt(args[i]);
+    			} else {
+    				LOGGER.error("Insufficient arguments to option "+args[i]);
+    				parseOk = false;
+    			}
     		} else if ("-cvr".equals(args[i])) {
     			if (i < args.length-1) {
     				i++;
@@ -355,6 +459,21 @@ public class SamplesHelper {
 						   "-keypass <password>: the password for the keystore is <password>\n"+
 						   "-trustfile <file>: use <file> as Java SSL truststore\n"+
 						   "-trustpass <password>: the password for the truststore is <password> \n"+
-						   "-cvr <nnnnnnnn>: the municipality to retrieve rights for is <nnnnnnnn>");
+						   "-cvr <nnnnnnnn>: the municipality to retrieve rights for is <nnnnnnnn>\n"+
+						   "-tokenrefresh <s>: renew tokens in the background <s> seconds before they expire\n"+
+						   "-prefetchcvr <nnnnnnnn,...>: also get tokens for these municipalities at startup\n"+
+						   "-prefetchconcurrency <n>: get at most <n> tokens at a time when prefetching\n"+
+						   "-ststimeout <ms>: wait at most <ms> milliseconds for Security Token Service responses\n"+
+						   "-stsconnections <n>: pool up to <n> connections to Security Token Service\n"+
+						   "-stslogging: log requests and responses to and from Security Token Service\n"+
+						   "-tokencache <file>: keep tokens in <file> (readable by owner only) and reuse them on the next run\n"+
+						   "-journalsync <policy>: force journaled messages to disk every message, every <n>ms or every <n> messages (default: "+journalSync+")\n"+
+						   "-journalsegment <MB>: start a new journal segment after <MB> megabytes (default: "+journalSegmentMBytes+")\n"+
+						   "-journalrotate <minutes>: start a new journal segment after <minutes> minutes, 0 for no limit (default: "+journalSegmentMinutes+")\n"+
+						   "-journalcompress: compress journal segments in blocks with a dictionary trained from sample messages\n"+
+						   "-journalsamples <dir>: train the compression dictionary from the *.xml files in <dir> (default: the test messages)\n"+
+						   "-recoverybackoff <ms>: wait up to <ms> milliseconds before the first attempt to reopen a lost connection (default: "+recoveryBackoffMsecs+")\n"+
+						   "-recoverymaxbackoff <ms>: wait at most <ms> milliseconds between attempts to reopen a lost connection (default: "+recoveryMaxBackoffMsecs+")\n"+
+						   "-recoverytimeout <s>: give up reopening a lost connection after <s> seconds (default: "+recoveryTimeoutSeconds+")");
 	}
 }
@@ -0,0 +1,427 @@
+package dk.kombit.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Thread-safe XML Schema validation against a schema on the classpath.
+ *
+ * The {@link Schema} is compiled once per schema resource and shared by all threads, while {@link Validator}
+ * instances (which are not thread-safe) are kept per thread and reused between calls. Imports are resolved relative
+ * to the importing schema on the classpath (e.g. xsd/1.1 and xsd/cached for Beskedkuvert.xsd), and an import of a
+ * remote schema is read from the cached directory next to the root schema instead of the network. Validation
+ * collects all violations instead of stopping at the first, and returns them as a {@link Result}.
+ */
+public final class SchemaValidator {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SchemaValidator.class);
+
+	/**
+	 * The classpath resource of the schema of Haendelsesbesked messages.
+	 */
+	public static final String BESKEDKUVERT_SCHEMA = "xsd/Beskedkuvert.xsd";
+
+	// Validation stops collecting violations after this many, a message with more is invalid anyway
+	private static final int MAX_VIOLATIONS = 100;
+
+	private static final ConcurrentMap<String, SchemaValidator> VALIDATORS = new ConcurrentHashMap<String, SchemaValidator>();
+
+	private final String resource;
+	private final Schema schema;
+	private final ThreadLocal<Validator> validators = new ThreadLocal<Validator>();
+
+	/**
+	 * A problem found while validating, with its position in the document.
+	 */
+	public static final class Violation {
+		/**
+		 * How serious a violation is; only warnings leave the document valid.
+		 */
+		public enum Severity { WARNING, ERROR, FATAL }
+
+		private final Severity severity;
+		private final int lineNumber;
+		private final int columnNumber;
+		private final String message;
+
+		Violation(Severity severity, SAXParseException e) {
+			this.severity = severity;
+			this.lineNumber = e.getLineNumber();
+			this.columnNumber = e.getColumnNumber();
+			this.message = e.getMessage();
+		}
+
+		public Severity getSeverity() {
+			return severity;
+		}
+
+		public int getLineNumber() {
+			return lineNumber;
+		}
+
+		public int getColumnNumber() {
+			return columnNumber;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return severity+" at line "+lineNumber+", column "+columnNumber+": "+message;
+		}
+	}
+
+	/**
+	 * The outcome of validating a document.
+	 */
+	public static final class Result {
+		private final List<Violation> violations;
+		private final boolean valid;
+
+		Result(List<Violation> violations) {
+			this.violations = Collections.unmodifiableList(violations);
+			boolean ok = true;
+			for (Violation v : violations) {
+				ok &= v.getSeverity() == Violation.Severity.WARNING;
+			}
+			this.valid = ok;
+		}
+
+		/**
+		 * @return true if the document has no errors (it may have warnings)
+		 */
+		public boolean isValid() {
+			return valid;
+		}
+
+		/**
+		 * @return the violations found, in document order, at most {@value SchemaValidator#MAX_VIOLATIONS}
+		 */
+		public List<Violation> getViolations() {
+			return violations;
+		}
+
+		@Override
+		public String toString() {
+			if (violations.isEmpty()) {
+				return "valid";
+			}
+			StringBuilder sb = new StringBuilder(valid ? "valid with " : "invalid, ").append(violations.size()).append(" violations");
+			for (Violation v : violations) {
+				sb.append("\n  ").append(v);
+			}
+			return sb.toString();
+		}
+	}
+
+	private SchemaValidator(String resource) throws SAXException {
+		this.resource = resource;
+		long start = System.nanoTime();
+		URL url = SchemaValidator.class.getClassLoader().getResource(resource);
+		if (url == null) {
+			throw new SAXException("Schema "+resource+" not found on the classpath");
+		}
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		factory.setResourceResolver(new ClasspathResolver(url));
+		try (InputStream in = url.openStream()) {
+			this.schema = factory.newSchema(new StreamSource(in, url.toExternalForm()));
+		} catch (IOException e) {
+			throw new SAXException("Could not read schema "+resource, e);
+		}
+		LOGGER.debug("Compiled schema "+resource+" in "+((System.nanoTime()-start)/1000000)+" ms");
+	}
+
+	/**
+	 * Returns the shared validator for a schema, compiling the schema on first use.
+	 * @param resource the classpath resource of the root schema, e.g. {@value #BESKEDKUVERT_SCHEMA}
+	 * @return the validator for the schema
+	 * @throws SAXException thrown if the schema cannot be found or compiled
+	 */
+	public static SchemaValidator forSchema(String resource) throws SAXException {
+		SchemaValidator validator = VALIDATORS.get(resource);
+		if (validator == null) {
+			SchemaValidator created = new SchemaValidator(resource);
+			validator = VALIDATORS.putIfAbsent(resource, created);
+			if (validator == null) {
+				validator = created;
+			}
+		}
+		return validator;
+	}
+
+	/**
+	 * @return the shared validator for Haendelsesbesked messages
+	 * @throws SAXException thrown if the schema cannot be found or compiled
+	 */
+	public static SchemaValidator beskedkuvert() throws SAXException {
+		return forSchema(BESKEDKUVERT_SCHEMA);
+	}
+
+	/**
+	 * @return the classpath resource of the root schema
+	 */
+	public String getResource() {
+		return resource;
+	}
+
+	/**
+	 * Validates an XML document held in a byte array.
+	 * @param xml the XML document, the encoding is taken from the XML declaration (default UTF-8)
+	 * @return the violations found
+	 */
+	public Result validate(byte[] xml) {
+		try {
+			return validate(new StreamSource(new ByteArrayInputStream(xml)));
+		} catch (IOException e) {
+			// Not thrown when reading from memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Validates the contents of a Source. A document that is not well-formed gives a {@link Violation.Severity#FATAL}
+	 * violation, not an exception.
+	 * @param source the document to validate
+	 * @return the violations found
+	 * @throws IOException thrown if the source cannot be read
+	 */
+	public Result validate(Source source) throws IOException {
+		Collector collector = new Collector();
+		Validator validator = validator();
+		validator.setErrorHandler(collector);
+		try {
+			validator.validate(source);
+		} catch (SAXParseException e) {
+			if (collector.violations.size() < MAX_VIOLATIONS) {
+				collector.violations.add(new Violation(Violation.Severity.FATAL, e));
+			}
+		} catch (SAXException e) {
+			if (e != Collector.ENOUGH) {
+				throw new IOException("Could not validate document", e);
+			}
+		} finally {
+			// Leave the validator clean for the next document on this thread
+			validator.reset();
+		}
+		return new Result(collector.violations);
+	}
+
+	private Validator validator() {
+		Validator v = validators.get();
+		if (v == null) {
+			v = schema.newValidator();
+			validators.set(v);
+		}
+		return v;
+	}
+
+	/**
+	 * Collects the violations of one validation.
+	 */
+	private static class Collector implements ErrorHandler {
+		static final SAXException ENOUGH = new SAXException("Too many violations");
+
+		final List<Violation> violations = new ArrayList<Violation>();
+
+		@Override
+		public void warning(SAXParseException e) throws SAXException {
+			add(Violation.Severity.WARNING, e);
+		}
+
+		@Override
+		public void error(SAXParseException e) throws SAXException {
+			add(Violation.Severity.ERROR, e);
+		}
+
+		@Override
+		public void fatalError(SAXParseException e) throws SAXException {
+			add(Violation.Severity.FATAL, e);
+			// The parser cannot continue after a fatal error
+			throw ENOUGH;
+		}
+
+		private void add(Violation.Severity severity, SAXParseException e) throws SAXException {
+			violations.add(new Violation(severity, e));
+			if (violations.size() >= MAX_VIOLATIONS) {
+				throw ENOUGH;
+			}
+		}
+	}
+
+	/**
+	 * Resolves imported schemas on the classpath, relative to the importing schema. Remote schemas are taken from the
+	 * cached directory next to the root schema. The contents of each schema are read once, so schemas imported from
+	 * several others (like SagDokObjekt.xsd) and later compilations of the same files do not read them again.
+	 */
+	private static class ClasspathResolver implements LSResourceResolver {
+		private static final ConcurrentMap<String, byte[]> CONTENTS = new ConcurrentHashMap<String, byte[]>();
+
+		private final URL root;
+
+		ClasspathResolver(URL root) {
+			this.root = root;
+		}
+
+		@Override
+		public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+			if (systemId == null) {
+				return null;
+			}
+			try {
+				URL url = new URL(baseURI != null ? new URL(baseURI) : root, systemId);
+				if ("http".equals(url.getProtocol()) || "https".equals(url.getProtocol())) {
+					String path = url.getPath();
+					URL cached = new URL(root, "cached/"+path.substring(path.lastIndexOf('/') + 1));
+					if (read(cached) == null) {
+						LOGGER.warn("Schema "+url+" is not in the cached schemas, reading it from the network");
+						return null;
+					}
+					url = cached;
+				}
+				byte[] content = read(url);
+				return content != null ? new SchemaInput(publicId, url.toExternalForm(), baseURI, content) : null;
+			} catch (MalformedURLException e) {
+				LOGGER.warn("Could not resolve schema "+systemId+" relative to "+baseURI, e);
+				return null;
+			}
+		}
+
+		private static byte[] read(URL url) {
+			String key = url.toExternalForm();
+			byte[] content = CONTENTS.get(key);
+			if (content == null) {
+				try (InputStream in = url.openStream()) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						out.write(buffer, 0, n);
+					}
+					content = out.toByteArray();
+					CONTENTS.put(key, content);
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			return content;
+		}
+	}
+
+	/**
+	 * An imported schema read by the {@link ClasspathResolver}.
+	 */
+	private static class SchemaInput implements LSInput {
+		private String publicId;
+		private String systemId;
+		private String baseURI;
+		private final byte[] content;
+
+		SchemaInput(String publicId, String systemId, String baseURI, byte[] content) {
+			this.publicId = publicId;
+			this.systemId = systemId;
+			this.baseURI = baseURI;
+			this.content = content;
+		}
+
+		@Override
+		public InputStream getByteStream() {
+			return new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public Reader getCharacterStream() {
+			return null;
+		}
+
+		@Override
+		public void setCharacterStream(Reader characterStream) {
+		}
+
+		@Override
+		public void setByteStream(InputStream byteStream) {
+		}
+
+		@Override
+		public String getStringData() {
+			return null;
+		}
+
+		@Override
+		public void setStringData(String stringData) {
+		}
+
+		@Override
+		public String getSystemId() {
+			return systemId;
+		}
+
+		@Override
+		public void setSystemId(String systemId) {
+			this.systemId = systemId;
+		}
+
+		@Override
+		public String getPublicId() {
+			return publicId;
+		}
+
+		@Override
+		public void setPublicId(String publicId) {
+			this.publicId = publicId;
+		}
+
+		@Override
+		public String getBaseURI() {
+			return baseURI;
+		}
+
+		@Override
+		public void setBaseURI(String baseURI) {
+			this.baseURI = baseURI;
+		}
+
+		@Override
+		public String getEncoding() {
+			return null;
+		}
+
+		@Override
+		public void setEncoding(String encoding) {
+		}
+
+		@Override
+		public boolean getCertifiedText() {
+			return false;
+		}
+
+		@Override
+		public void setCertifiedText(boolean certifiedText) {
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package dk.kombit.samples;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.Base64;
+import java.util.Enumeration;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The key material of the samples, loaded once from the keystore and truststore configured in {@link SamplesHelper}.
+ *
+ * Loading a JKS file decrypts it, which is slow, so the key and trust managers, the client certificate and an
+ * initialized {@link SSLContext} are created together and shared by all connections. Sharing the SSLContext also
+ * shares its TLS session cache, so reconnecting to the same host can resume the session instead of doing a full
+ * handshake. The instance is immutable; {@link #get()} creates a new one only if the configured files or
+ * passwords change.
+ */
+public final class SecurityContext {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SecurityContext.class);
+
+	private static SecurityContext current;
+
+	private final String keyStoreFile;
+	private final String keyStorePassword;
+	private final String trustStoreFile;
+	private final String trustStorePassword;
+	private final KeyManager[] keyManagers;
+	private final TrustManager[] trustManagers;
+	private final SSLContext sslContext;
+	private final String certificate;
+
+	private SecurityContext(String keyStoreFile, String keyStorePassword, String trustStoreFile, String trustStorePassword)
+			throws IOException, GeneralSecurityException {
+		this.keyStoreFile = keyStoreFile;
+		this.keyStorePassword = keyStorePassword;
+		this.trustStoreFile = trustStoreFile;
+		this.trustStorePassword = trustStorePassword;
+
+		long start = System.currentTimeMillis();
+		KeyStore keys = load(keyStoreFile, keyStorePassword);
+		// KeyManagers decide which key material to use
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+		kmf.init(keys, keyStorePassword.toCharArray());
+		keyManagers = kmf.getKeyManagers();
+
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509", "SunJSSE");
+		tmf.init(load(trustStoreFile, trustStorePassword));
+		trustManagers = tmf.getTrustManagers();
+
+		sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagers, trustManagers, new SecureRandom());
+
+		String first = null;
+		Enumeration<String> aliases = keys.aliases();
+		while (first == null && aliases.hasMoreElements()) {
+			Certificate c = keys.getCertificate(aliases.nextElement());
+			if (c != null) {
+				first = new String(Base64.getEncoder().encode(c.getEncoded()));
+			}
+		}
+		if (first == null) {
+			throw new GeneralSecurityException("No certificate found in "+keyStoreFile);
+		}
+		certificate = first;
+		LOGGER.debug("Loaded key material from "+keyStoreFile+" and "+trustStoreFile+" in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * @return the security context for the keystore and truststore currently configured in {@link SamplesHelper}
+	 * @throws RuntimeException thrown if the keystore or truststore cannot be loaded
+	 */
+	public static synchronized SecurityContext get() {
+		if (current == null || !current.isFor(SamplesHelper.keyStoreFile, SamplesHelper.keyStorePassword,
+				SamplesHelper.trustStoreFile, SamplesHelper.trustStorePassword)) {
+			try {
+				current = new SecurityContext(SamplesHelper.keyStoreFile, SamplesHelper.keyStorePassword,
+						SamplesHelper.trustStoreFile, SamplesHelper.trustStorePassword);
+			} catch (IOException | GeneralSecurityException e) {
+				LOGGER.error("Caught exception while instantiating keystore",e);
+				throw new RuntimeException(e);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @return the SSLContext initialized with the key and trust managers, to be shared by all connections
+	 */
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * @return the key managers of the keystore
+	 */
+	public KeyManager[] getKeyManagers() {
+		return keyManagers.clone();
+	}
+
+	/**
+	 * @return the trust managers of the truststore
+	 */
+	public TrustManager[] getTrustManagers() {
+		return trustManagers.clone();
+	}
+
+	/**
+	 * @return the first certificate in the keystore, base64 encoded
+	 */
+	public String getCertificate() {
+		return certificate;
+	}
+
+	private boolean isFor(String keyStoreFile, String keyStorePassword, String trustStoreFile, String trustStorePassword) {
+		return this.keyStoreFile.equals(keyStoreFile) && this.keyStorePassword.equals(keyStorePassword)
+				&& this.trustStoreFile.equals(trustStoreFile) && this.trustStorePassword.equals(trustStorePassword);
+	}
+
+	private static KeyStore load(String file, String password) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = new FileInputStream(file)) {
+			keyStore.load(in, password.toCharArray());
+		}
+		return keyStore;
+	}
+}
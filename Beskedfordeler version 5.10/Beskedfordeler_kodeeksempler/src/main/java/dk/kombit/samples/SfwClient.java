@@ -2,10 +2,18 @@ package dk.kombit.samples;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
 import org.apache.cxf.feature.Feature;
 import org.apache.cxf.feature.LoggingFeature;
-import org.apache.cxf.jaxrs.client.JAXRSClientFactory;
+import org.apache.cxf.jaxrs.client.JAXRSClientFactoryBean;
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduitFactory;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,7 +27,14 @@ import dk.kombit.sts.safewhere.model.stsr.RequestSecurityToken;
 import dk.kombit.sts.safewhere.model.stsr.RequestSecurityTokenResponse;
 
 /**
- * Class retrieving tokens by calling Security Token Service REST API
+ * Class retrieving tokens by calling Security Token Service REST API.
+ *
+ * Clients are meant to be long-lived and shared: use {@link #forUrl(String)} to get the client for an STS URL.
+ * The underlying proxy is thread-safe and sends its requests with the Apache HttpAsyncClient conduit of CXF, whose
+ * connection pool keeps the HTTP connections (and TLS sessions) alive between calls, with up to
+ * {@link SamplesHelper#stsMaxConnections} connections per host. The clients share a CXF bus of their own, so the
+ * pool settings do not change the other CXF clients. Wire logging of requests and responses is only enabled if
+ * {@link SamplesHelper#stsWireLogging} is set.
  */
 public class SfwClient {
 	private static final Logger LOGGER = LoggerFactory.getLogger(SfwClient.class);	
@@ -29,13 +44,48 @@ public class SfwClient {
 	private static final String SAML_TOKEN_V20 = "http://docs.oasis-open.org/wss/oasis-wss-saml-token-profile-1.1#SAMLV2.0";
 
     private static final List<?> PROVIDERS = Collections.singletonList(new JacksonJsonProvider());
-    private static final List<Feature> FEATURES = Collections.<Feature>singletonList(new LoggingFeature());
+
+    private static final ConcurrentMap<String, SfwClient> CLIENTS = new ConcurrentHashMap<String, SfwClient>();
+    private static Bus stsBus;
 
     private ApiApi tokenApi;
 	private String stsUrl;
 
-    private  <API> API tokenClient(String urlToken, Class<API> api) {
-        return JAXRSClientFactory.create(stsUrl, api, PROVIDERS, FEATURES, null);
+    /**
+     * @return the bus of the Security Token Service clients, created with the connection pool settings on first use
+     */
+    private static synchronized Bus stsBus() {
+    	if (stsBus == null) {
+    		// Created first, so the bus below does not become the default bus of the other CXF clients
+    		BusFactory.getDefaultBus(true);
+    		Bus bus = BusFactory.newInstance().createBus();
+    		// Read by the conduit factory when the first client is created
+    		bus.setProperty(AsyncHTTPConduitFactory.USE_POLICY, AsyncHTTPConduitFactory.UseAsyncPolicy.ALWAYS);
+    		bus.setProperty(AsyncHTTPConduitFactory.MAX_CONNECTIONS, SamplesHelper.stsMaxConnections);
+    		bus.setProperty(AsyncHTTPConduitFactory.MAX_PER_HOST_CONNECTIONS, SamplesHelper.stsMaxConnections);
+    		stsBus = bus;
+    	}
+    	return stsBus;
+    }
+
+    private <API> API tokenClient(String urlToken, Class<API> api) {
+    	JAXRSClientFactoryBean factory = new JAXRSClientFactoryBean();
+    	factory.setBus(stsBus());
+    	factory.setAddress(urlToken);
+    	factory.setServiceClass(api);
+    	factory.setProviders(PROVIDERS);
+    	if (SamplesHelper.stsWireLogging) {
+    		factory.setFeatures(Collections.<Feature>singletonList(new LoggingFeature()));
+    	}
+    	factory.setThreadSafe(true);
+    	API client = factory.create(api);
+
+    	HTTPClientPolicy policy = new HTTPClientPolicy();
+    	policy.setConnection(ConnectionType.KEEP_ALIVE);
+    	policy.setConnectionTimeout(SamplesHelper.stsConnectTimeoutMsecs);
+    	policy.setReceiveTimeout(SamplesHelper.stsReceiveTimeoutMsecs);
+    	WebClient.getConfig(client).getHttpConduit().setClient(policy);
+        return client;
     }
 
     public SfwClient(String sfwUrl) {
@@ -43,6 +93,23 @@ public class SfwClient {
     	tokenApi = tokenClient(stsUrl, ApiApi.class);
     }
 
+    /**
+     * Returns the shared client for a Security Token Service URL, creating it on first use.
+     * @param sfwUrl the URL of the Security Token Service REST API
+     * @return the client for sfwUrl
+     */
+    public static SfwClient forUrl(String sfwUrl) {
+    	SfwClient client = CLIENTS.get(sfwUrl);
+    	if (client == null) {
+    		SfwClient created = new SfwClient(sfwUrl);
+    		client = CLIENTS.putIfAbsent(sfwUrl, created);
+    		if (client == null) {
+    			client = created;
+    		}
+    	}
+    	return client;
+    }
+
     /**
      * Performs REST call to Security Token Service and retrieves a token.
      * Uses default Java TLS/SSL setup.
@@ -53,7 +120,7 @@ public class SfwClient {
      */
     public String performTokenCall(String cvr, String certificate, String serviceEntityId) {
     	
-    	LOGGER.info("Using Security Token Service at endpoint: " + stsUrl);
+    	LOGGER.debug("Using Security Token Service at endpoint: " + stsUrl);
 
         RequestSecurityToken rst = new RequestSecurityToken();
 
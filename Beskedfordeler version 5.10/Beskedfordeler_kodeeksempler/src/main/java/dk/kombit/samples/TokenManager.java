@@ -1,47 +1,147 @@
 package dk.kombit.samples;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
  * Retrieves and caches tokens from Security Token Service.
+ *
+ * The expiry time (Conditions/@NotOnOrAfter) and the privileges of a token are extracted once when the token
+ * is received, so a cache hit is a lock-free lookup and a comparison against the clock.
+ *
+ * Concurrent requests for the same (CVR, service entity ID) that miss the cache share a single call to the
+ * Security Token Service. If {@link #enableBackgroundRefresh(long)} is called, tokens are renewed in the
+ * background a given margin before they expire, so callers are not held up by the Security Token Service.
+ *
+ * {@link #prefetchTokens(List, String, int)} fetches tokens for many CVR numbers in parallel, e.g. at startup of a
+ * system acting on behalf of many municipalities.
+ *
+ * With {@link #setCacheFile(File)} the cache is also kept in a local file readable only by the owner, so a
+ * restarted process can reuse tokens that are still valid instead of calling the Security Token Service.
  */
 public class TokenManager {
-	private static final Logger LOGGER = LoggerFactory.getLogger(TokenManager.class);	
-	
-	private static final String DATE_EXP = "//Assertion/Conditions[xs:date(./@NotBefore)] > xs:date('%s')";
-	private static final String PRIV_EXP = "//Assertion/AttributeStatement/Attribute[@Name='dk:gov:saml:attribute:Privileges_intermediate']";
-	private static XPathExpression compiledPrivilegeExpression;
+	private static final Logger LOGGER = LoggerFactory.getLogger(TokenManager.class);
+
+	private static final String PRIV_ATTRIBUTE_NAME = "dk:gov:saml:attribute:Privileges_intermediate";
+
+	/**
+	 * Default margin before NotOnOrAfter at which a cached token is considered expired.
+	 */
+	public static final long DEFAULT_EXPIRY_SKEW_MSECS = 60000;
+
+	/**
+	 * Default margin before NotOnOrAfter at which tokens are renewed in the background (must exceed the expiry skew).
+	 */
+	public static final long DEFAULT_REFRESH_MARGIN_MSECS = 300000;
+
+	// Delay before retrying a failed background refresh
+	private static final long REFRESH_RETRY_MSECS = 30000;
+
+	private static final DatatypeFactory DATATYPE_FACTORY;
 	static {
 		try {
-			compiledPrivilegeExpression = XPathFactory.newInstance().newXPath().compile(PRIV_EXP);
-		} catch (XPathExpressionException e) {
-			LOGGER.error("Caught exception compiling "+PRIV_EXP,e);
+			DATATYPE_FACTORY = DatatypeFactory.newInstance();
+		} catch (DatatypeConfigurationException e) {
+			throw new ExceptionInInitializerError(e);
 		}
 	}
-		
+
     private String tokenServiceUrl;
-	
+    private volatile long expirySkewMsecs = DEFAULT_EXPIRY_SKEW_MSECS;
+    private volatile long refreshMarginMsecs = DEFAULT_REFRESH_MARGIN_MSECS;
+    private volatile ScheduledExecutorService refreshScheduler;
+    private volatile File cacheFile;
+    private final Object cacheFileLock = new Object();
+
 	public TokenManager(String url) {
 		tokenServiceUrl = url;
-	}	
+	}
+
+	/**
+	 * Sets the margin before a token's NotOnOrAfter at which it is no longer handed out from the cache,
+	 * to allow for clock skew and for the time it takes to use the token.
+	 * @param expirySkewMsecs the margin in milliseconds
+	 */
+	public void setExpirySkew(long expirySkewMsecs) {
+		this.expirySkewMsecs = expirySkewMsecs;
+	}
+
+	/**
+	 * Keeps the token cache in a file, loading the tokens in it that are still valid. The file is rewritten
+	 * every time a new token is received, and is only readable and writable by the owner.
+	 * @param file the file to read and write tokens from and to
+	 */
+	public void setCacheFile(File file) {
+		cacheFile = file;
+		if (file.exists()) {
+			loadCacheFile(file);
+		}
+	}
+
+	/**
+	 * Starts renewing cached tokens in the background when they are within refreshMarginMsecs of expiring.
+	 * The margin should be larger than the expiry skew, otherwise callers may still have to wait for a new token.
+	 * @param refreshMarginMsecs the margin in milliseconds
+	 */
+	public synchronized void enableBackgroundRefresh(long refreshMarginMsecs) {
+		this.refreshMarginMsecs = refreshMarginMsecs;
+		if (refreshScheduler == null) {
+			refreshScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "token-refresh");
+				t.setDaemon(true);
+				return t;
+			});
+			for (Map.Entry<KeyPair, CachedToken> entry : cachedTokens.entrySet()) {
+				scheduleRefresh(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Stops background renewal of tokens, if enabled.
+	 */
+	public synchronized void shutdown() {
+		if (refreshScheduler != null) {
+			refreshScheduler.shutdownNow();
+			refreshScheduler = null;
+		}
+	}
 
 	/**
 	 * Returns true if security token is expired, false otherwise.
@@ -52,21 +152,9 @@ public class TokenManager {
 	 * @throws ParserConfigurationException
 	 */
 	public static boolean isExpired(String token) throws SAXException, IOException, ParserConfigurationException {
-		String dateNow = new SimpleDateFormat("yyyy-MM-dd").format(new Date());		
-		String dateexp = String.format(DATE_EXP, dateNow);		
-		byte[] decodedToken = Base64.getDecoder().decode(token);
-		try {
-			ByteArrayInputStream is = new ByteArrayInputStream(decodedToken); 
-			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-			compiledDateExpression = XPathFactory.newInstance().newXPath().compile(dateexp);
-			String date = (String) compiledDateExpression.evaluate(doc, XPathConstants.STRING);
-			return date.equals("true");
-		} catch (XPathExpressionException e) {
-			LOGGER.error("Caught exception evaluating "+dateexp+" against token "+new String(decodedToken),e);
-			return false;
-		}
+		return CachedToken.parse(token, null).isExpired(System.currentTimeMillis(), DEFAULT_EXPIRY_SKEW_MSECS);
 	}
-	
+
 	/**
 	 * Simple pair of String for cache for tokens.
 	 */
@@ -82,64 +170,421 @@ public class TokenManager {
 		        if (this == o) return true;
 		        if (!(o instanceof KeyPair)) return false;
 		        KeyPair key = (KeyPair) o;
-		        return v1 == key.v1 && v2 == key.v2;
+		        return Objects.equals(v1, key.v1) && Objects.equals(v2, key.v2);
 		    }
-	
+
 		    @Override
 		    public int hashCode() {
-		        int result = v1.hashCode();
-		        result = 31 * result + v2.hashCode();
-		        return result;
+		        return Objects.hash(v1, v2);
 		    }
 		    @Override
 		    public String toString() {
 		    	return "{cvr:"+v1+",entityId:"+v2+"}";
 		    }
 	}
-	
+
 	/**
-	 * Cached tokens stored as a HashMap
+	 * A request for a token on behalf of a CVR number to a service, used for {@link TokenManager#prefetchTokens(List, String, int)}.
 	 */
-	private Map<KeyPair, String> cachedTokens = new HashMap<KeyPair, String>();
+	public static class TokenRequest {
+		private final String cvr;
+		private final String serviceEntityId;
 
-	private static XPathExpression compiledDateExpression;
+		public TokenRequest(String cvr, String serviceEntityId) {
+			this.cvr = cvr;
+			this.serviceEntityId = serviceEntityId;
+		}
+
+		public String getCvr() {
+			return cvr;
+		}
+
+		public String getServiceEntityId() {
+			return serviceEntityId;
+		}
+
+		@Override
+		public String toString() {
+			return "{cvr:"+cvr+",entityId:"+serviceEntityId+"}";
+		}
+	}
+
+	/**
+	 * Outcome of getting the token for a {@link TokenRequest}.
+	 */
+	public static class PrefetchResult {
+		private final TokenRequest request;
+		private final long latencyMsecs;
+		private final Exception error;
+
+		PrefetchResult(TokenRequest request, long latencyMsecs, Exception error) {
+			this.request = request;
+			this.latencyMsecs = latencyMsecs;
+			this.error = error;
+		}
+
+		public TokenRequest getRequest() {
+			return request;
+		}
+
+		/**
+		 * @return the time it took to get the token (or to fail), in milliseconds
+		 */
+		public long getLatencyMsecs() {
+			return latencyMsecs;
+		}
+
+		/**
+		 * @return the exception thrown while getting the token, or null if a token was got
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * A token together with the values extracted from it when it was received.
+	 */
+	private static class CachedToken {
+		final String token;
+		// NotOnOrAfter in milliseconds since epoch, 0 if the token had no NotOnOrAfter
+		final long notOnOrAfter;
+		final String priviledges;
+		// certificate the token was requested with, used for renewing it
+		final String certificate;
+
+		CachedToken(String token, long notOnOrAfter, String priviledges, String certificate) {
+			this.token = token;
+			this.notOnOrAfter = notOnOrAfter;
+			this.priviledges = priviledges;
+			this.certificate = certificate;
+		}
+
+		boolean isExpired(long now, long skewMsecs) {
+			return now + skewMsecs >= notOnOrAfter;
+		}
+
+		boolean isUsableFor(String base64Certificate, long now, long skewMsecs) {
+			return !isExpired(now, skewMsecs) && (certificate == null || certificate.equals(base64Certificate));
+		}
+
+		/**
+		 * Decodes and parses a token once, extracting Conditions/@NotOnOrAfter and the privileges attribute.
+		 */
+		static CachedToken parse(String token, String certificate) throws SAXException, IOException, ParserConfigurationException {
+			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+			dbFactory.setNamespaceAware(true);
+			Document doc = dbFactory.newDocumentBuilder().parse(new ByteArrayInputStream(Base64.getDecoder().decode(token)));
+
+			long notOnOrAfter = 0;
+			NodeList conditions = doc.getElementsByTagNameNS("*", "Conditions");
+			if (conditions.getLength() > 0) {
+				String value = ((Element) conditions.item(0)).getAttribute("NotOnOrAfter");
+				if (!value.isEmpty()) {
+					notOnOrAfter = DATATYPE_FACTORY.newXMLGregorianCalendar(value.trim()).toGregorianCalendar().getTimeInMillis();
+				}
+			}
+			if (notOnOrAfter == 0) {
+				LOGGER.warn("Token has no Conditions/@NotOnOrAfter, it will not be reused");
+			}
+
+			String priviledges = null;
+			NodeList attributes = doc.getElementsByTagNameNS("*", "Attribute");
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Element attribute = (Element) attributes.item(i);
+				if (PRIV_ATTRIBUTE_NAME.equals(attribute.getAttribute("Name"))) {
+					priviledges = new String(Base64.getMimeDecoder().decode(attribute.getTextContent().trim()));
+					break;
+				}
+			}
+			return new CachedToken(token, notOnOrAfter, priviledges, certificate);
+		}
+	}
+
+	/**
+	 * Cached tokens, read without locking
+	 */
+	private final ConcurrentMap<KeyPair, CachedToken> cachedTokens = new ConcurrentHashMap<KeyPair, CachedToken>();
+
+	/**
+	 * Calls to Security Token Service in progress, shared by all threads waiting for the same token
+	 */
+	private final ConcurrentMap<KeyPair, CompletableFuture<CachedToken>> tokenCalls = new ConcurrentHashMap<KeyPair, CompletableFuture<CachedToken>>();
 
 	/**
 	 * Returns current token if it is still valid or gets new one if not. Caches tokens based on CVR and Service entity ID.
 	 * @param cvr a String containing the number identifier of authority on which behalf to get a token
 	 * @param base64Certificate a String containing the X509 certificate corresponding to the Java TLS/SSL key
 	 * @param serviceEntityId a String containing the service's entity ID (URI) to request a token for
-	 * @throws ParserConfigurationException 
-	 * @throws IOException 
-	 * @throws SAXException 
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws SAXException
 	 */
 	public String getToken(String cvr, String base64Certificate, String serviceEntityId) throws SAXException, IOException, ParserConfigurationException {
 		KeyPair kp = new KeyPair(cvr, serviceEntityId);
-		LOGGER.debug("Checking cache for token for: "+kp);
-		synchronized (cachedTokens) {
-			if (cachedTokens.containsKey(kp)) {
-				String token = cachedTokens.get(kp);
-				if (isExpired(token)) {
-					LOGGER.debug("Cache contains expired token for "+kp);
-					cachedTokens.remove(kp);
-				} else {
-					LOGGER.debug("Cache contains valid token for "+kp);
-					return token;
-				}
+		CachedToken cached = cachedTokens.get(kp);
+		if (cached == null) {
+			LOGGER.debug("Cache does not contain token for "+kp);
+		} else if (cached.isExpired(System.currentTimeMillis(), expirySkewMsecs)) {
+			LOGGER.debug("Cache contains expired token for "+kp);
+			cachedTokens.remove(kp, cached);
+		} else if (!cached.isUsableFor(base64Certificate, System.currentTimeMillis(), expirySkewMsecs)) {
+			LOGGER.debug("Cache contains token for "+kp+" issued for another certificate");
+		} else {
+			LOGGER.debug("Cache contains valid token for "+kp);
+			return cached.token;
+		}
+
+		return callTokenService(kp, base64Certificate, false).token;
+	}
+
+	/**
+	 * Gets tokens for a number of (CVR, service entity ID) pairs in parallel, so they are cached before use.
+	 * Tokens that are already cached are not fetched again, and failures are reported rather than thrown.
+	 * @param requests the tokens to get
+	 * @param base64Certificate a String containing the X509 certificate corresponding to the Java TLS/SSL key
+	 * @param maxConcurrency the maximum number of calls to Security Token Service in progress at a time
+	 * @return the outcome for each request, in the order of requests
+	 */
+	public List<PrefetchResult> prefetchTokens(List<TokenRequest> requests, String base64Certificate, int maxConcurrency) {
+		List<PrefetchResult> results = new ArrayList<PrefetchResult>(requests.size());
+		if (requests.isEmpty()) {
+			return results;
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrency, requests.size())));
+		try {
+			List<Future<PrefetchResult>> futures = new ArrayList<Future<PrefetchResult>>(requests.size());
+			for (TokenRequest request : requests) {
+				futures.add(executor.submit(() -> {
+					long requestStart = System.currentTimeMillis();
+					try {
+						getToken(request.getCvr(), base64Certificate, request.getServiceEntityId());
+						return new PrefetchResult(request, System.currentTimeMillis() - requestStart, null);
+					} catch (Exception e) {
+						return new PrefetchResult(request, System.currentTimeMillis() - requestStart, e);
+					}
+				}));
+			}
+			for (Future<PrefetchResult> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn("Interrupted while prefetching tokens");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int failed = 0;
+		for (PrefetchResult result : results) {
+			if (result.isSuccess()) {
+				LOGGER.debug("Prefetched token for "+result.getRequest()+" in "+result.getLatencyMsecs()+" ms");
 			} else {
-				LOGGER.debug("Cache does not contain token for "+kp);
+				failed++;
+				LOGGER.warn("Failed to prefetch token for "+result.getRequest()+" after "+result.getLatencyMsecs()+" ms", result.getError());
+			}
+		}
+		LOGGER.info("Prefetched "+(results.size()-failed)+" of "+requests.size()+" tokens in "+(System.currentTimeMillis()-start)+" ms ("+failed+" failed)");
+		return results;
+	}
+
+	/**
+	 * Gets a new token from Security Token Service and caches it. If a call for the same key is already in
+	 * progress, waits for that call instead of making another.
+	 * @param kp the cache key
+	 * @param base64Certificate the certificate to request the token with
+	 * @param renew true to always get a new token, false to return a valid cached token added in the meantime
+	 */
+	private CachedToken callTokenService(KeyPair kp, String base64Certificate, boolean renew) throws SAXException, IOException, ParserConfigurationException {
+		CompletableFuture<CachedToken> call = new CompletableFuture<CachedToken>();
+		CompletableFuture<CachedToken> callInProgress = tokenCalls.putIfAbsent(kp, call);
+		if (callInProgress != null) {
+			LOGGER.debug("Waiting for token call in progress for "+kp);
+			return await(callInProgress);
+		}
+		try {
+			CachedToken cached = cachedTokens.get(kp);
+			if (!renew && cached != null && cached.isUsableFor(base64Certificate, System.currentTimeMillis(), expirySkewMsecs)) {
+				call.complete(cached);
+				return cached;
+			}
+
+			SfwClient client = SfwClient.forUrl(tokenServiceUrl);
+			String token = client.performTokenCall(kp.v1, base64Certificate, kp.v2);
+			CachedToken received = CachedToken.parse(token, base64Certificate);
+			LOGGER.debug("Adding token for "+kp+" valid until "+new Date(received.notOnOrAfter)+" to cache");
+			cachedTokens.put(kp, received);
+			call.complete(received);
+			scheduleRefresh(kp, received);
+			saveCacheFile();
+			return received;
+		} catch (SAXException | IOException | ParserConfigurationException | RuntimeException e) {
+			call.completeExceptionally(e);
+			throw e;
+		} finally {
+			tokenCalls.remove(kp, call);
+		}
+	}
+
+	private static CachedToken await(CompletableFuture<CachedToken> call) throws SAXException, IOException, ParserConfigurationException {
+		try {
+			return call.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for token", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SAXException) {
+				throw (SAXException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Schedules renewal of a token refreshMarginMsecs before it expires, if background refresh is enabled.
+	 */
+	private void scheduleRefresh(KeyPair kp, CachedToken token) {
+		ScheduledExecutorService scheduler = refreshScheduler;
+		if (scheduler == null || token.notOnOrAfter == 0 || token.certificate == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		// Tokens with a lifetime shorter than the margin are renewed half way through their remaining lifetime
+		long delay = Math.max(token.notOnOrAfter - refreshMarginMsecs - now, (token.notOnOrAfter - now) / 2);
+		LOGGER.debug("Scheduling renewal of token for "+kp+" in "+delay+" ms");
+		try {
+			scheduler.schedule(() -> refresh(kp, token), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Background refresh stopped, not renewing token for "+kp);
+		}
+	}
+
+	private void refresh(KeyPair kp, CachedToken token) {
+		if (cachedTokens.get(kp) != token) {
+			// Token has already been replaced, and the replacement has its own renewal scheduled
+			return;
+		}
+		try {
+			LOGGER.info("Renewing token for "+kp+" in the background");
+			callTokenService(kp, token.certificate, true);
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception renewing token for "+kp+", retrying in "+REFRESH_RETRY_MSECS+" ms", e);
+			ScheduledExecutorService scheduler = refreshScheduler;
+			if (scheduler != null && !token.isExpired(System.currentTimeMillis() + REFRESH_RETRY_MSECS, 0)) {
+				try {
+					scheduler.schedule(() -> refresh(kp, token), REFRESH_RETRY_MSECS, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException ree) {
+					LOGGER.debug("Background refresh stopped, not renewing token for "+kp);
+				}
+			}
+		}
+	}
+
+	private void loadCacheFile(File file) {
+		long now = System.currentTimeMillis();
+		int loaded = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 4) {
+					LOGGER.warn("Skipping malformed line in token cache file "+file);
+					continue;
+				}
+				try {
+					KeyPair kp = new KeyPair(fields[0], fields[1]);
+					CachedToken token = CachedToken.parse(fields[3], fields[2]);
+					if (!token.isExpired(now, expirySkewMsecs) && cachedTokens.putIfAbsent(kp, token) == null) {
+						scheduleRefresh(kp, token);
+						loaded++;
+					}
+				} catch (Exception e) {
+					LOGGER.warn("Skipping unreadable token in token cache file "+file, e);
+				}
 			}
+		} catch (IOException e) {
+			LOGGER.warn("Caught exception reading token cache file "+file, e);
 		}
-		
-		SfwClient client = new SfwClient(tokenServiceUrl);
-		String token = client.performTokenCall(cvr, base64Certificate, serviceEntityId);
-		synchronized (cachedTokens) {
-			LOGGER.debug("Adding token for "+kp+" to cache");			
-			cachedTokens.put(kp, token);
-		}		
-		return token;
+		LOGGER.info("Loaded "+loaded+" valid tokens from token cache file "+file);
 	}
-	
+
+	/**
+	 * Writes the tokens that have not yet expired to the cache file, replacing it atomically.
+	 */
+	private void saveCacheFile() {
+		File file = cacheFile;
+		if (file == null) {
+			return;
+		}
+		synchronized (cacheFileLock) {
+			Path target = file.getAbsoluteFile().toPath();
+			Path tmp = null;
+			try {
+				tmp = createOwnerOnlyFile(target.getParent(), target.getFileName().toString());
+				long now = System.currentTimeMillis();
+				try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+					writer.write("# TokenManager cache: CVR, service entity ID, certificate, token\n");
+					for (Map.Entry<KeyPair, CachedToken> entry : cachedTokens.entrySet()) {
+						CachedToken token = entry.getValue();
+						if (token.certificate == null || token.isExpired(now, 0)) {
+							continue;
+						}
+						writer.write(entry.getKey().v1+"\t"+entry.getKey().v2+"\t"+token.certificate+"\t"+token.token+"\n");
+					}
+				}
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				LOGGER.debug("Saved token cache to "+target);
+			} catch (IOException e) {
+				LOGGER.warn("Caught exception writing token cache file "+target, e);
+				if (tmp != null) {
+					tmp.toFile().delete();
+				}
+			}
+		}
+	}
+
+	private static Path createOwnerOnlyFile(Path dir, String prefix) throws IOException {
+		try {
+			return Files.createTempFile(dir, prefix+".", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system
+			File tmp = Files.createTempFile(dir, prefix+".", ".tmp").toFile();
+			tmp.setReadable(false, false);
+			tmp.setReadable(true, true);
+			tmp.setWritable(false, false);
+			tmp.setWritable(true, true);
+			return tmp.toPath();
+		}
+	}
+
+	/**
+	 * Returns the privileges of the cached token for a CVR and service entity ID, as extracted when the token was received.
+	 * @param cvr a String containing the number identifier of authority the token was issued for
+	 * @param serviceEntityId a String containing the service's entity ID (URI) the token was issued for
+	 * @return decoded priviledges (XML string), or null if there is no cached token or it has no privileges
+	 */
+	public String getTokenPriviledges(String cvr, String serviceEntityId) {
+		CachedToken cached = cachedTokens.get(new KeyPair(cvr, serviceEntityId));
+		return cached == null ? null : cached.priviledges;
+	}
+
 	/**
 	 * Returns priviledges from base64 encoded SAML token
 	 * @param base64EncodedToken a base64 encoded token to extract priviledges from
@@ -147,14 +592,11 @@ public class TokenManager {
 	 */
 	public static String getTokenPriviledges(String base64EncodedToken) {
 		try {
-			ByteArrayInputStream is = new ByteArrayInputStream(Base64.getDecoder().decode(base64EncodedToken)); 
-			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-			String priviledges = (String) compiledPrivilegeExpression.evaluate(doc, XPathConstants.STRING);
-			return new String(Base64.getDecoder().decode(priviledges));
+			return CachedToken.parse(base64EncodedToken, null).priviledges;
 		} catch (Exception e) {
 			LOGGER.error("Caught exception extracting priviledges from "+base64EncodedToken,e);
 			throw new RuntimeException(e);
 		}
-		
+
 	}
 }
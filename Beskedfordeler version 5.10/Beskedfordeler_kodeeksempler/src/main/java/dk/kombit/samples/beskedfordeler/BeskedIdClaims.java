@@ -0,0 +1,127 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Claims BeskedIds while their messages are being handled, so two copies of a message handled at the same time
+ * (e.g. redelivered after a lost channel while the first copy is still being journaled, or received on two queues)
+ * are not both handled.
+ *
+ * {@link #claim(String)} atomically checks that an id is neither handled nor claimed. The id is added to the
+ * {@link DedupIndex} by {@link #complete(String)}, which the caller must only do once the message is on disk: a
+ * journal append is buffered until the journal is synced, so if the index survives a crash (e.g. a
+ * {@link MappedBeskedIdDedup}) the journal must be flushed first, or the index may hold the id of a message that was
+ * lost. If handling fails the claim is given up with {@link #release(String)} and a later copy can be handled.
+ */
+public class BeskedIdClaims {
+	/**
+	 * The outcome of {@link BeskedIdClaims#claim(String, Waiter)}.
+	 */
+	public enum Claim {
+		/** The caller may handle the message */
+		CLAIMED,
+		/** The message has been handled */
+		HANDLED,
+		/** Another copy of the message is being handled, the waiter is called when it is completed or released */
+		WAITING
+	}
+
+	/**
+	 * Called when the copy of a message holding the claim on its id is completed or released.
+	 */
+	public interface Waiter {
+		/**
+		 * Called on the thread completing or releasing the claim, so it must not block.
+		 * @param handled true if the message was handled, false if the claim was given up and the message will be delivered again
+		 */
+		void settled(boolean handled);
+	}
+
+	private final DedupIndex handled;
+	// The claimed ids, and the copies waiting for each claim to be completed or released
+	private final ConcurrentHashMap<String, List<Waiter>> claimed = new ConcurrentHashMap<String, List<Waiter>>();
+
+	/**
+	 * @param handled the ids of the messages already handled
+	 */
+	public BeskedIdClaims(DedupIndex handled) {
+		this.handled = handled;
+	}
+
+	/**
+	 * @param beskedId a BeskedId UUID
+	 * @return true if the caller may handle the message, false if it has been handled or is being handled
+	 */
+	public boolean claim(String beskedId) {
+		if (claimed.putIfAbsent(beskedId, new ArrayList<Waiter>(0)) != null) {
+			return false;
+		}
+		// Checked after claiming, so a copy completed in between is seen either here or by the claim above
+		if (handled.contains(beskedId)) {
+			settle(claimed.remove(beskedId), true);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Claims an id, or if another copy of the message is being handled, waits for it without blocking the caller.
+	 * @param beskedId a BeskedId UUID
+	 * @param waiter called when the claim of the other copy is completed or released, if the result is {@link Claim#WAITING}
+	 * @return whether the caller may handle the message, it has been handled, or another copy is being handled
+	 */
+	public Claim claim(String beskedId, Waiter waiter) {
+		while (true) {
+			if (claim(beskedId)) {
+				return Claim.CLAIMED;
+			}
+			if (claimed.computeIfPresent(beskedId, (id, waiters) -> {
+				waiters.add(waiter);
+				return waiters;
+			}) != null) {
+				return Claim.WAITING;
+			}
+			// The other copy was completed or released in between
+			if (handled.contains(beskedId)) {
+				return Claim.HANDLED;
+			}
+		}
+	}
+
+	/**
+	 * @param beskedId a BeskedId UUID
+	 * @return true if another copy of the message is being handled, so this copy should be retried rather than
+	 * confirmed as a duplicate
+	 */
+	public boolean isClaimed(String beskedId) {
+		return claimed.containsKey(beskedId);
+	}
+
+	/**
+	 * Remembers a claimed id as handled, call it when the message is on disk.
+	 * @param beskedId a claimed BeskedId
+	 */
+	public void complete(String beskedId) {
+		handled.add(beskedId);
+		settle(claimed.remove(beskedId), true);
+	}
+
+	/**
+	 * Gives up a claim without remembering the id, call it when handling failed and the message will be delivered again.
+	 * @param beskedId a claimed BeskedId
+	 */
+	public void release(String beskedId) {
+		settle(claimed.remove(beskedId), false);
+	}
+
+	private static void settle(List<Waiter> waiters, boolean handled) {
+		// Removed from the map, so no waiter is added to the list any more
+		if (waiters != null) {
+			for (Waiter waiter : waiters) {
+				waiter.settled(handled);
+			}
+		}
+	}
+}
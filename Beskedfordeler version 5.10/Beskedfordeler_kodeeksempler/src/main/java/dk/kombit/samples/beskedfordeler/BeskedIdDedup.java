@@ -0,0 +1,224 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Bounded set of seen BeskedId UUIDs for detecting duplicate messages.
+ *
+ * Each UUID is stored as two longs in flat open-addressing tables, so lookups are O(1) and memory use is fixed
+ * by the capacity no matter how many messages pass through. Ids are kept in two generations: the current one
+ * takes new ids, and when it is older than the retention window (or full) it becomes the previous generation and
+ * the oldest generation is dropped. An id is therefore remembered for at least the retention window unless more
+ * than capacity ids arrive within it. The set is split in independently locked segments so concurrent consumer
+ * threads rarely wait for each other. The ids are only kept in memory, see {@link MappedBeskedIdDedup} for an
+ * index that survives a restart.
+ */
+public class BeskedIdDedup implements DedupIndex {
+	private static final int SEGMENTS = 16;
+	private static final double LOAD_FACTOR = 0.6;
+
+	private final long retentionMsecs;
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * @param capacity the number of ids that can be remembered within one retention window
+	 * @param retentionMsecs the minimum time an id is remembered
+	 */
+	public BeskedIdDedup(int capacity, long retentionMsecs) {
+		this.retentionMsecs = retentionMsecs;
+		// Ids do not spread perfectly evenly over the segments, so leave some room before a segment is full
+		int maxPerSegment = Math.max(16, (int) (capacity * 1.25 / SEGMENTS));
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxPerSegment, now);
+		}
+	}
+
+	@Override
+	public boolean contains(String beskedId) {
+		long[] key = toKey(beskedId);
+		return segmentFor(key[0], key[1]).contains(key[0], key[1], System.currentTimeMillis());
+	}
+
+	@Override
+	public boolean add(String beskedId) {
+		long[] key = toKey(beskedId);
+		return segmentFor(key[0], key[1]).add(key[0], key[1], System.currentTimeMillis());
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to write, the ids are only kept in memory
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private Segment segmentFor(long hi, long lo) {
+		return segments[(int) (hash(hi, lo) >>> 60) & (SEGMENTS - 1)];
+	}
+
+	static long hash(long hi, long lo) {
+		// Finalizer from MurmurHash3, random UUIDs are well distributed already but ids may also be sequential
+		long h = hi * 31 + lo;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Converts a UUID string to two longs without creating intermediate objects. Ids that are not UUIDs
+	 * (which should not happen for BeskedId) are hashed to a name-based UUID instead.
+	 * @param uuid the UUID string, e.g. 42e4601f-9fe0-411e-b7a9-1e4581474e18
+	 * @return the most and least significant bits of uuid
+	 */
+	static long[] toKey(String uuid) {
+		if (uuid.length() == 36 && uuid.charAt(8) == '-' && uuid.charAt(13) == '-' && uuid.charAt(18) == '-' && uuid.charAt(23) == '-') {
+			long hi = 0;
+			long lo = 0;
+			boolean valid = true;
+			for (int i = 0; i < 36 && valid; i++) {
+				if (i == 8 || i == 13 || i == 18 || i == 23) {
+					continue;
+				}
+				int digit = Character.digit(uuid.charAt(i), 16);
+				if (digit < 0) {
+					valid = false;
+				} else if (i < 19) {
+					hi = (hi << 4) | digit;
+				} else {
+					lo = (lo << 4) | digit;
+				}
+			}
+			if (valid) {
+				return new long[] { hi, lo };
+			}
+		}
+		UUID named = UUID.nameUUIDFromBytes(uuid.getBytes(StandardCharsets.UTF_8));
+		return new long[] { named.getMostSignificantBits(), named.getLeastSignificantBits() };
+	}
+
+	/**
+	 * Open-addressing table of (hi, lo) pairs with linear probing. The all-zero UUID marks an empty slot and is tracked separately.
+	 */
+	private static final class Generation {
+		final long[] keys;
+		final int mask;
+		int size;
+		boolean hasZero;
+		long created;
+
+		Generation(int slots, long created) {
+			this.keys = new long[slots * 2];
+			this.mask = slots - 1;
+			this.created = created;
+		}
+
+		boolean contains(long hi, long lo) {
+			if (hi == 0 && lo == 0) {
+				return hasZero;
+			}
+			int slot = (int) hash(hi, lo) & mask;
+			while (true) {
+				long h = keys[slot * 2];
+				long l = keys[slot * 2 + 1];
+				if (h == 0 && l == 0) {
+					return false;
+				}
+				if (h == hi && l == lo) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		void insert(long hi, long lo) {
+			if (hi == 0 && lo == 0) {
+				hasZero = true;
+				size++;
+				return;
+			}
+			int slot = (int) hash(hi, lo) & mask;
+			while (keys[slot * 2] != 0 || keys[slot * 2 + 1] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot * 2] = hi;
+			keys[slot * 2 + 1] = lo;
+			size++;
+		}
+
+		void clear(long now) {
+			Arrays.fill(keys, 0L);
+			size = 0;
+			hasZero = false;
+			created = now;
+		}
+	}
+
+	private final class Segment {
+		final int maxEntries;
+		Generation current;
+		Generation previous;
+
+		Segment(int maxEntries, long now) {
+			this.maxEntries = maxEntries;
+			int slots = Integer.highestOneBit((int) Math.ceil(maxEntries / LOAD_FACTOR) - 1) << 1;
+			this.current = new Generation(slots, now);
+			this.previous = new Generation(slots, now);
+		}
+
+		synchronized boolean contains(long hi, long lo, long now) {
+			rotateIfExpired(now);
+			return current.contains(hi, lo) || previous.contains(hi, lo);
+		}
+
+		synchronized boolean add(long hi, long lo, long now) {
+			rotateIfExpired(now);
+			if (current.contains(hi, lo) || previous.contains(hi, lo)) {
+				return false;
+			}
+			if (current.size >= maxEntries) {
+				rotate(now);
+			}
+			current.insert(hi, lo);
+			return true;
+		}
+
+		synchronized int size() {
+			return current.size + previous.size;
+		}
+
+		private void rotateIfExpired(long now) {
+			if (now - current.created >= retentionMsecs) {
+				rotate(now);
+				if (now - previous.created >= retentionMsecs * 2) {
+					// Nothing added for two windows, the previous generation has expired as well
+					previous.clear(now);
+				}
+			}
+		}
+
+		private void rotate(long now) {
+			// Reuse the arrays of the oldest generation, so memory stays flat
+			Generation oldest = previous;
+			oldest.clear(now);
+			previous = current;
+			current = oldest;
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Block compressed format of a {@link MessageJournal} segment.
+ *
+ * The journal records are written exactly as in an uncompressed segment, but collected in blocks that are deflated
+ * with a {@link CompressionDictionary} before they are written. A record's location is its offset in the uncompressed
+ * records, so locations mean the same in both formats. Each block starts with a header holding the offset of its
+ * first byte in the uncompressed records, its uncompressed and compressed length and a CRC32 of the uncompressed
+ * bytes, so a block that was not completely written is recognized. Next to the segment a block index file lists the
+ * offset of every block, so a single record is read by inflating only the block holding it. The block index is not
+ * forced to disk; blocks missing from it are found from the block headers.
+ *
+ * A compressed segment starts with a magic number, which cannot be mistaken for the length of a record in an
+ * uncompressed segment, and the id of the dictionary.
+ */
+final class CompressedSegment {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompressedSegment.class);
+
+	private static final long MAGIC = 0x42464a5a424c4b31L; // "BFJZBLK1"
+	static final int SEGMENT_HEADER_SIZE = 12;
+	private static final int BLOCK_HEADER_SIZE = 20; // start (long), length (int), compressed length (int), crc (int)
+	private static final int BLOCK_INDEX_ENTRY_SIZE = 16;
+	// Largest uncompressed block, so a corrupt block header cannot make a reader allocate any size of buffer
+	static final int MAX_BLOCK_LENGTH = 256 * 1024 * 1024;
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String BLOCK_INDEX_SUFFIX = ".blocks";
+	private static final int CACHED_BLOCK_INDEXES = 16;
+
+	// Block indexes of recently read segments, checked against the segment length as the last segment may still grow
+	private static final Map<File, BlockIndex> blockIndexes = new LinkedHashMap<File, BlockIndex>(CACHED_BLOCK_INDEXES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, BlockIndex> eldest) {
+			return size() > CACHED_BLOCK_INDEXES;
+		}
+	};
+
+	private CompressedSegment() {
+	}
+
+	/**
+	 * @param segment a segment file
+	 * @return true if the segment is block compressed
+	 * @throws IOException thrown if the segment cannot be read
+	 */
+	static boolean isCompressed(File segment) throws IOException {
+		if (segment.length() < SEGMENT_HEADER_SIZE) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(segment))) {
+			return in.readLong() == MAGIC;
+		}
+	}
+
+	/**
+	 * Opens the uncompressed records of a segment.
+	 * @param segment a block compressed segment
+	 * @param offset the offset in the uncompressed records to start at
+	 * @return stream of the records from offset, ending before the first block that was not completely written
+	 * @throws IOException thrown if the segment or its dictionary cannot be read
+	 */
+	static InputStream open(File segment, long offset) throws IOException {
+		BlockIndex index;
+		synchronized (blockIndexes) {
+			index = blockIndexes.get(segment);
+			if (index == null || index.segmentLength != segment.length()) {
+				index = new BlockIndex(segment, index);
+				blockIndexes.put(segment, index);
+			}
+		}
+		int block = index.find(offset);
+		BlockInputStream in = new BlockInputStream(segment, index.dictionaryId,
+				block < 0 ? SEGMENT_HEADER_SIZE : index.positions[block], block < 0 ? 0 : index.starts[block]);
+		try {
+			long skip = offset - in.start;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					break;
+				}
+				skip -= skipped;
+			}
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	private static File blockIndexFile(File segment) {
+		String fileName = segment.getName();
+		if (fileName.endsWith(SEGMENT_SUFFIX)) {
+			fileName = fileName.substring(0, fileName.length()-SEGMENT_SUFFIX.length());
+		}
+		return new File(segment.getParentFile(), fileName+BLOCK_INDEX_SUFFIX);
+	}
+
+	private static String journalName(File segment) {
+		String fileName = segment.getName();
+		int dash = fileName.lastIndexOf('-');
+		return dash > 0 ? fileName.substring(0, dash) : fileName;
+	}
+
+	/**
+	 * Writes the blocks of one segment. Records are written to {@link #records()} and compressed by {@link #writeBlock()}.
+	 */
+	static class Writer implements Closeable {
+		private final DataOutputStream segmentOut;
+		private final DataOutputStream blockIndexOut;
+		private final byte[] dictionary;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private final CRC32 crc = new CRC32();
+		private final BlockBuffer block = new BlockBuffer();
+		private final DataOutputStream records = new DataOutputStream(block);
+		private byte[] compressed = new byte[8192];
+		private long start = 0;
+		private long position = SEGMENT_HEADER_SIZE;
+
+		/**
+		 * Writes the segment header and creates the block index of a new segment.
+		 * @param segment the new segment file
+		 * @param segmentOut the stream writing the segment
+		 * @param dictionary the dictionary to compress with
+		 * @throws IOException thrown if the header or block index cannot be written
+		 */
+		Writer(File segment, DataOutputStream segmentOut, byte[] dictionary) throws IOException {
+			this.segmentOut = segmentOut;
+			this.dictionary = dictionary;
+			segmentOut.writeLong(MAGIC);
+			segmentOut.writeInt(CompressionDictionary.id(dictionary));
+			blockIndexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(blockIndexFile(segment))));
+		}
+
+		/**
+		 * @return stream for the records of the current block
+		 */
+		DataOutputStream records() {
+			return records;
+		}
+
+		/**
+		 * @return the number of uncompressed bytes waiting in the current block
+		 */
+		int pending() {
+			return block.size();
+		}
+
+		/**
+		 * Compresses the current block and writes it to the segment, if it has any records.
+		 * @throws IOException thrown if the block cannot be written
+		 */
+		void writeBlock() throws IOException {
+			int length = block.size();
+			if (length == 0) {
+				return;
+			}
+			byte[] bytes = block.buffer();
+			crc.reset();
+			crc.update(bytes, 0, length);
+
+			deflater.reset();
+			deflater.setDictionary(dictionary);
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+
+			segmentOut.writeLong(start);
+			segmentOut.writeInt(length);
+			segmentOut.writeInt(compressedLength);
+			segmentOut.writeInt((int) crc.getValue());
+			segmentOut.write(compressed, 0, compressedLength);
+			blockIndexOut.writeLong(start);
+			blockIndexOut.writeLong(position);
+
+			start += length;
+			position += BLOCK_HEADER_SIZE + compressedLength;
+			block.reset();
+		}
+
+		/**
+		 * Writes the block index entries written so far to the file, without forcing them to disk.
+		 * @throws IOException thrown if the block index cannot be written
+		 */
+		void flush() throws IOException {
+			blockIndexOut.flush();
+		}
+
+		/**
+		 * Writes the last block and closes the block index. The segment stream is closed by the caller.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				writeBlock();
+			} finally {
+				deflater.end();
+				blockIndexOut.close();
+			}
+		}
+	}
+
+	/**
+	 * Buffer of the current block, exposing its array so the block is compressed without copying it.
+	 */
+	private static class BlockBuffer extends ByteArrayOutputStream {
+		BlockBuffer() {
+			super(64 * 1024);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * The uncompressed offset and position in the segment of each block.
+	 */
+	private static class BlockIndex {
+		private final int dictionaryId;
+		private final long segmentLength;
+		private long[] starts;
+		private long[] positions;
+		private int count = 0;
+
+		/**
+		 * Reads the block index file, and the headers of the blocks after the last one in it.
+		 * @param previous an index of an earlier length of the segment, to continue from, or null
+		 */
+		BlockIndex(File segment, BlockIndex previous) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+				segmentLength = raf.length();
+				if (raf.readLong() != MAGIC) {
+					throw new IOException(segment+" is not a compressed journal segment");
+				}
+				dictionaryId = raf.readInt();
+				if (previous != null) {
+					starts = Arrays.copyOf(previous.starts, Math.max(16, previous.count * 2));
+					positions = Arrays.copyOf(previous.positions, starts.length);
+					count = previous.count;
+				} else {
+					starts = new long[16];
+					positions = new long[16];
+					loadIndexFile(blockIndexFile(segment));
+				}
+
+				// Find the blocks the index file does not list
+				long position;
+				long start;
+				if (count == 0) {
+					position = SEGMENT_HEADER_SIZE;
+					start = 0;
+				} else {
+					raf.seek(positions[count - 1] + 8);
+					int length = raf.readInt();
+					int compressedLength = raf.readInt();
+					position = positions[count - 1] + BLOCK_HEADER_SIZE + compressedLength;
+					start = starts[count - 1] + length;
+				}
+				while (position + BLOCK_HEADER_SIZE <= segmentLength) {
+					raf.seek(position);
+					if (raf.readLong() != start) {
+						break;
+					}
+					int length = raf.readInt();
+					int compressedLength = raf.readInt();
+					if (length < 0 || length > MAX_BLOCK_LENGTH || compressedLength < 0 || position + BLOCK_HEADER_SIZE + compressedLength > segmentLength) {
+						break;
+					}
+					add(start, position);
+					start += length;
+					position += BLOCK_HEADER_SIZE + compressedLength;
+				}
+			}
+		}
+
+		private void loadIndexFile(File file) throws IOException {
+			if (!file.exists()) {
+				return;
+			}
+			long entries = file.length() / BLOCK_INDEX_ENTRY_SIZE;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				for (long i = 0; i < entries; i++) {
+					long start = in.readLong();
+					long position = in.readLong();
+					if (position >= segmentLength || (count > 0 && (start <= starts[count - 1] || position <= positions[count - 1]))) {
+						// Entry of a block not (yet) in the segment
+						break;
+					}
+					add(start, position);
+				}
+			}
+		}
+
+		private void add(long start, long position) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			starts[count] = start;
+			positions[count] = position;
+			count++;
+		}
+
+		/**
+		 * @return the block holding offset, or -1 if there are no blocks
+		 */
+		int find(long offset) {
+			int i = Arrays.binarySearch(starts, 0, count, offset);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	/**
+	 * Reads blocks from a position in the segment and returns their uncompressed bytes.
+	 */
+	private static class BlockInputStream extends InputStream {
+		private final File segment;
+		private final DataInputStream in;
+		private final byte[] dictionary;
+		private final Inflater inflater = new Inflater();
+		private final CRC32 crc = new CRC32();
+		private final long start;
+		private long nextStart;
+		private long position;
+		private byte[] compressed = new byte[8192];
+		private byte[] block = new byte[0];
+		private int blockLength = 0;
+		private int blockPosition = 0;
+		private boolean end = false;
+
+		BlockInputStream(File segment, int dictionaryId, long position, long start) throws IOException {
+			this.segment = segment;
+			this.dictionary = CompressionDictionary.load(segment.getParentFile(), journalName(segment), dictionaryId);
+			this.start = start;
+			this.nextStart = start;
+			this.position = position;
+			FileInputStream file = new FileInputStream(segment);
+			file.getChannel().position(position);
+			this.in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (blockPosition == blockLength && !nextBlock()) {
+				return -1;
+			}
+			return block[blockPosition++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (blockPosition == blockLength && !nextBlock()) {
+				return -1;
+			}
+			int n = Math.min(len, blockLength - blockPosition);
+			System.arraycopy(block, blockPosition, b, off, n);
+			blockPosition += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0 || (blockPosition == blockLength && !nextBlock())) {
+				return 0;
+			}
+			int skipped = (int) Math.min(n, blockLength - blockPosition);
+			blockPosition += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+
+		private boolean nextBlock() throws IOException {
+			while (!end) {
+				int length;
+				int compressedLength;
+				int checksum;
+				try {
+					long blockStart = in.readLong();
+					length = in.readInt();
+					compressedLength = in.readInt();
+					checksum = in.readInt();
+					position += BLOCK_HEADER_SIZE;
+					if (blockStart != nextStart || length < 0 || length > MAX_BLOCK_LENGTH || compressedLength < 0) {
+						LOGGER.warn("Invalid block header at uncompressed offset "+nextStart+" in "+segment+", ignoring rest of segment");
+						end = true;
+						return false;
+					}
+					if (compressedLength > segment.length() - position) {
+						// The last block was cut off, or is still being written
+						end = true;
+						return false;
+					}
+					if (compressed.length < compressedLength) {
+						compressed = new byte[compressedLength];
+					}
+					in.readFully(compressed, 0, compressedLength);
+					position += compressedLength;
+				} catch (EOFException e) {
+					// Nothing more, or the last block was cut off
+					end = true;
+					return false;
+				}
+				if (block.length < length) {
+					block = new byte[length];
+				}
+				if (!inflate(compressedLength, length, checksum)) {
+					LOGGER.warn("Block at uncompressed offset "+nextStart+" in "+segment+" is corrupt, ignoring rest of segment");
+					end = true;
+					return false;
+				}
+				blockLength = length;
+				blockPosition = 0;
+				nextStart += length;
+				if (length > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean inflate(int compressedLength, int length, int checksum) {
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			try {
+				int n = 0;
+				while (n < length && !inflater.finished()) {
+					int inflated = inflater.inflate(block, n, length - n);
+					if (inflated == 0) {
+						if (inflater.needsDictionary()) {
+							inflater.setDictionary(dictionary);
+						} else if (inflater.needsInput()) {
+							return false;
+						}
+					}
+					n += inflated;
+				}
+				if (n != length) {
+					return false;
+				}
+			} catch (DataFormatException | IllegalArgumentException e) {
+				return false;
+			}
+			crc.reset();
+			crc.update(block, 0, length);
+			return (int) crc.getValue() == checksum;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Preset dictionary for deflating messages, built from sample messages.
+ *
+ * Haendelsesbeskeder repeat the same namespaces, element names, Beskedtype UUIDs and authorities, but a single
+ * message is too short for deflate to find much of that within itself. A preset dictionary holding the fragments
+ * that recur across the samples lets even the first bytes of a block refer back to them. The samples are cut into
+ * tags and text between tags, and the fragments found in most samples are put in the dictionary, the most valuable
+ * last, as deflate encodes short distances more cheaply.
+ *
+ * A dictionary is identified by its Adler-32 checksum, which deflate also records in every compressed stream, and is
+ * stored in the journal directory under that id, so data compressed with an older dictionary can still be read.
+ */
+public final class CompressionDictionary {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompressionDictionary.class);
+
+	// Deflate can only refer back 32 KB
+	public static final int MAX_SIZE = 32 * 1024;
+	private static final String DICTIONARY_SUFFIX = ".dict";
+	private static final String[] DEFAULT_SAMPLES = {"beskeder/testbesked01.xml", "beskeder/testbesked02.xml", "beskeder/testbesked03.xml"};
+
+	private static final Map<File, byte[]> loaded = new HashMap<File, byte[]>();
+
+	private CompressionDictionary() {
+	}
+
+	/**
+	 * Builds a dictionary from sample messages.
+	 * @param samples the sample messages
+	 * @return the dictionary, at most {@link #MAX_SIZE} bytes
+	 */
+	public static byte[] train(List<byte[]> samples) {
+		// Number of samples each fragment occurs in
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		for (byte[] sample : samples) {
+			Set<String> fragments = new HashSet<String>();
+			String text = new String(sample, StandardCharsets.ISO_8859_1);
+			int start = 0;
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == '<' && i > start) {
+					fragments.add(text.substring(start, i));
+					start = i;
+				} else if (c == '>') {
+					fragments.add(text.substring(start, i + 1));
+					start = i + 1;
+				}
+			}
+			for (String fragment : fragments) {
+				Integer count = occurrences.get(fragment);
+				occurrences.put(fragment, count == null ? 1 : count + 1);
+			}
+		}
+
+		// Fragments unique to one message (BeskedIds, timestamps) are left out when there are samples to compare
+		int minOccurrences = Math.min(2, samples.size());
+		List<Map.Entry<String, Integer>> candidates = new ArrayList<Map.Entry<String, Integer>>();
+		for (Map.Entry<String, Integer> e : occurrences.entrySet()) {
+			if (e.getValue() >= minOccurrences && e.getKey().trim().length() > 2) {
+				candidates.add(e);
+			}
+		}
+		Collections.sort(candidates, (a, b) -> {
+			int c = Long.compare((long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length());
+			return c != 0 ? c : a.getKey().compareTo(b.getKey());
+		});
+
+		List<String> chosen = new ArrayList<String>();
+		int size = 0;
+		for (Map.Entry<String, Integer> e : candidates) {
+			if (size + e.getKey().length() > MAX_SIZE) {
+				continue;
+			}
+			chosen.add(e.getKey());
+			size += e.getKey().length();
+		}
+		Collections.reverse(chosen);
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+		for (String fragment : chosen) {
+			byte[] bytes = fragment.getBytes(StandardCharsets.ISO_8859_1);
+			dictionary.write(bytes, 0, bytes.length);
+		}
+		LOGGER.debug("Trained dictionary of "+size+" bytes from "+samples.size()+" samples");
+		return dictionary.toByteArray();
+	}
+
+	/**
+	 * @param directory a directory of sample messages, or null for the test messages on the classpath
+	 * @return the sample messages (*.xml files in directory)
+	 * @throws IOException thrown if the samples cannot be read
+	 */
+	public static List<byte[]> loadSamples(String directory) throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		if (directory != null) {
+			File[] files = new File(directory).listFiles((dir, fileName) -> fileName.endsWith(".xml"));
+			if (files == null || files.length == 0) {
+				throw new FileNotFoundException("No sample messages (*.xml) in "+directory);
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				samples.add(Files.readAllBytes(file.toPath()));
+			}
+		} else {
+			for (String resource : DEFAULT_SAMPLES) {
+				try (InputStream in = CompressionDictionary.class.getClassLoader().getResourceAsStream(resource)) {
+					if (in == null) {
+						throw new FileNotFoundException("Sample message "+resource+" not found on classpath");
+					}
+					ByteArrayOutputStream sample = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						sample.write(buffer, 0, n);
+					}
+					samples.add(sample.toByteArray());
+				}
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * @param dictionary a dictionary
+	 * @return the id of the dictionary (its Adler-32 checksum, as recorded by deflate)
+	 */
+	public static int id(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Stores a dictionary in a journal directory, unless it is already there. The dictionary is on disk when this
+	 * returns, so it survives a crash of the machine as well as the segments compressed with it.
+	 * @param directory the journal directory
+	 * @param name prefix of the journal's file names
+	 * @param dictionary the dictionary
+	 * @throws IOException thrown if the dictionary cannot be written
+	 */
+	public static void store(File directory, String name, byte[] dictionary) throws IOException {
+		int id = id(dictionary);
+		File file = file(directory, name, id);
+		if (file.exists() && file.length() == dictionary.length && id(Files.readAllBytes(file.toPath())) == id) {
+			return;
+		}
+		// Written under another name first, so a reader never sees a partly written dictionary
+		File tmp = new File(directory, file.getName()+".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(dictionary);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// The rename is only durable when the directory is
+		forceDirectory(directory);
+	}
+
+	private static void forceDirectory(File directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Directories cannot be opened on Windows, so there is no way to force them from Java
+			if (directory.isDirectory() && !System.getProperty("os.name", "").startsWith("Windows")) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Loads a dictionary stored with {@link #store(File, String, byte[])}. Dictionaries are cached once loaded.
+	 * @param directory the journal directory
+	 * @param name prefix of the journal's file names
+	 * @param id the id of the dictionary
+	 * @return the dictionary
+	 * @throws IOException thrown if the dictionary is missing or cannot be read
+	 */
+	public static byte[] load(File directory, String name, int id) throws IOException {
+		File file = file(directory, name, id);
+		synchronized (loaded) {
+			byte[] dictionary = loaded.get(file);
+			if (dictionary == null) {
+				if (!file.exists()) {
+					throw new FileNotFoundException("Compression dictionary "+file+" is missing");
+				}
+				dictionary = Files.readAllBytes(file.toPath());
+				if (id(dictionary) != id) {
+					throw new IOException("Compression dictionary "+file+" is corrupt");
+				}
+				loaded.put(file, dictionary);
+			}
+			return dictionary;
+		}
+	}
+
+	private static File file(File directory, String name, int id) {
+		return new File(directory, String.format("%s-%08x%s", name, id, DICTIONARY_SUFFIX));
+	}
+}
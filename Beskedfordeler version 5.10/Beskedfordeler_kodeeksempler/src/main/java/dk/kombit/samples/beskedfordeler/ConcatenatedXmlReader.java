@@ -0,0 +1,381 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
+import dk.kombit.samples.JaxbCodec;
+
+/**
+ * Reads files holding many XML documents written one after the other, as produced by {@link SimpelPersistering}.
+ *
+ * The file is memory-mapped and scanned for document boundaries by following the element nesting in the raw bytes
+ * (skipping comments, processing instructions, CDATA sections and quoted attribute values), so no XML parser is
+ * involved in splitting and documents with or without an XML declaration are found. The documents are returned as a
+ * lazy stream; {@link #envelopes()} and {@link #haendelsesbeskeder()} parse them in parallel on the fork/join pool
+ * of the stream (the common pool, or the pool the terminal operation is submitted to). Files larger than 2 GB are
+ * mapped in windows, so archives of any size can be read. A document that cannot be parsed is logged with its offset
+ * in the file and skipped, so one corrupt document does not end the reading of the rest of the archive.
+ */
+public class ConcatenatedXmlReader implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConcatenatedXmlReader.class);
+
+	private static final long WINDOW_SIZE = 1L << 30;
+	private static final int NEED_MORE = -1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * A document and where it starts in the file.
+	 */
+	private static final class Document {
+		final long offset;
+		final byte[] bytes;
+
+		Document(long offset, byte[] bytes) {
+			this.offset = offset;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @param file the file to read
+	 * @throws IOException thrown if the file cannot be opened
+	 */
+	public ConcatenatedXmlReader(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = channel.size();
+	}
+
+	/**
+	 * @return the documents of the file in order, each as its own byte array
+	 */
+	public Stream<byte[]> documents() {
+		return located().map(document -> document.bytes);
+	}
+
+	/**
+	 * @return the envelopes of the documents, read in parallel, without the documents that could not be read
+	 */
+	public Stream<HaendelsesbeskedEnvelope> envelopes() {
+		return located().parallel().map(document -> {
+			try {
+				return HaendelsesbeskedEnvelope.peek(document.bytes);
+			} catch (XMLStreamException | RuntimeException e) {
+				return skip(document, e);
+			}
+		}).filter(Objects::nonNull);
+	}
+
+	/**
+	 * @param filter the envelopes of the documents to return
+	 * @return the documents whose envelope is accepted by filter, in order, without the documents that could not be read
+	 */
+	public Stream<byte[]> documents(Predicate<HaendelsesbeskedEnvelope> filter) {
+		return located().filter(document -> {
+			try {
+				return filter.test(HaendelsesbeskedEnvelope.peek(document.bytes));
+			} catch (XMLStreamException | RuntimeException e) {
+				skip(document, e);
+				return false;
+			}
+		}).map(document -> document.bytes);
+	}
+
+	/**
+	 * @return the documents unmarshalled as {@link HaendelsesbeskedType}, in parallel, without the documents that
+	 * could not be unmarshalled
+	 */
+	public Stream<HaendelsesbeskedType> haendelsesbeskeder() {
+		return located().parallel().map(document -> {
+			try {
+				return JaxbCodec.forType(HaendelsesbeskedType.class).unmarshal(document.bytes);
+			} catch (JAXBException | RuntimeException e) {
+				return skip(document, e);
+			}
+		}).filter(Objects::nonNull);
+	}
+
+	/**
+	 * @return the number of documents skipped by {@link #envelopes()}, {@link #documents(Predicate)} and {@link #haendelsesbeskeder()} because
+	 * they could not be read
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private Stream<Document> located() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new DocumentIterator(),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	private <T> T skip(Document document, Exception e) {
+		skipped.incrementAndGet();
+		LOGGER.warn("Skipping document at offset "+document.offset+" in "+file+" which could not be read: "+e);
+		return null;
+	}
+
+	/**
+	 * Finds the documents one at a time, mapping a new window when a document runs past the end of the current one.
+	 */
+	private class DocumentIterator implements Iterator<Document> {
+		private long windowStart = 0;
+		private MappedByteBuffer window;
+		private int pos = 0;
+		private Document next;
+		private boolean done = false;
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = findNext();
+				} catch (IOException e) {
+					throw new RuntimeException("Could not read "+file, e);
+				}
+				done = next == null;
+			}
+			return next != null;
+		}
+
+		@Override
+		public Document next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Document document = next;
+			next = null;
+			return document;
+		}
+
+		private Document findNext() throws IOException {
+			while (true) {
+				if (window == null) {
+					window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, fileSize - windowStart));
+				}
+				int start = skipWhitespace(pos);
+				if (start == window.limit()) {
+					if (windowStart + window.limit() >= fileSize) {
+						return null;
+					}
+					remap(start);
+					continue;
+				}
+				int end = scanDocument(start);
+				if (end != NEED_MORE) {
+					end = skipTrailingMisc(end);
+					byte[] document = new byte[end - start];
+					ByteBuffer slice = window.duplicate();
+					slice.position(start);
+					slice.get(document);
+					pos = end;
+					return new Document(windowStart + start, document);
+				}
+				if (windowStart + window.limit() >= fileSize) {
+					LOGGER.warn("Incomplete document at offset "+(windowStart + start)+" at end of "+file+", ignoring it");
+					return null;
+				}
+				if (start == 0) {
+					throw new IOException("Document at offset "+windowStart+" in "+file+" is larger than "+WINDOW_SIZE+" bytes");
+				}
+				remap(start);
+			}
+		}
+
+		private void remap(int start) {
+			windowStart += start;
+			window = null;
+			pos = 0;
+		}
+
+		/**
+		 * Comments and processing instructions after the root element belong to the document, but an XML
+		 * declaration starts the next one.
+		 * @return the offset after the trailing comments and processing instructions of a document ending at end
+		 */
+		private int skipTrailingMisc(int end) {
+			while (true) {
+				int i = skipWhitespace(end);
+				int next = NEED_MORE;
+				if (startsWith(i, "<!--")) {
+					next = indexOf(i + 4, '-', '-', '>');
+				} else if (startsWith(i, "<?") && !(startsWith(i, "<?xml") && i + 5 < window.limit() && isWhitespace(window.get(i + 5)))) {
+					next = indexOf(i + 2, '?', '>');
+				}
+				if (next == NEED_MORE) {
+					return end;
+				}
+				end = next;
+			}
+		}
+
+		private int skipWhitespace(int i) {
+			int limit = window.limit();
+			while (i < limit && isWhitespace(window.get(i))) {
+				i++;
+			}
+			return i;
+		}
+
+		/**
+		 * @return the offset just after the document starting at start, or NEED_MORE if it continues past the window
+		 */
+		private int scanDocument(int start) {
+			int limit = window.limit();
+			int depth = 0;
+			boolean rootSeen = false;
+			int i = start;
+			while (i < limit) {
+				if (window.get(i) != '<') {
+					i++;
+					continue;
+				}
+				if (i + 1 >= limit) {
+					return NEED_MORE;
+				}
+				byte b = window.get(i + 1);
+				if (b == '?') {
+					i = indexOf(i + 2, '?', '>');
+				} else if (b == '!') {
+					if (i + 9 > limit) {
+						// Not enough left to tell a comment from CDATA or a declaration
+						return NEED_MORE;
+					} else if (startsWith(i, "<!--")) {
+						i = indexOf(i + 4, '-', '-', '>');
+					} else if (startsWith(i, "<![CDATA[")) {
+						i = indexOf(i + 9, ']', ']', '>');
+					} else {
+						i = skipDeclaration(i + 2);
+					}
+				} else if (b == '/') {
+					i = skipTag(i + 2);
+					depth--;
+				} else {
+					i = skipTag(i + 1);
+					if (i != NEED_MORE && window.get(i - 2) != '/') {
+						depth++;
+					}
+					rootSeen = true;
+				}
+				if (i == NEED_MORE) {
+					return NEED_MORE;
+				}
+				if (rootSeen && depth == 0) {
+					return i;
+				}
+			}
+			return NEED_MORE;
+		}
+
+		/**
+		 * @return the offset after the '>' ending a tag, skipping quoted attribute values
+		 */
+		private int skipTag(int i) {
+			int limit = window.limit();
+			byte quote = 0;
+			for (; i < limit; i++) {
+				byte b = window.get(i);
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '>') {
+					return i + 1;
+				}
+			}
+			return NEED_MORE;
+		}
+
+		/**
+		 * @return the offset after a declaration such as DOCTYPE, including an internal subset in brackets
+		 */
+		private int skipDeclaration(int i) {
+			int limit = window.limit();
+			int brackets = 0;
+			byte quote = 0;
+			for (; i < limit; i++) {
+				byte b = window.get(i);
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '[') {
+					brackets++;
+				} else if (b == ']') {
+					brackets--;
+				} else if (b == '>' && brackets == 0) {
+					return i + 1;
+				}
+			}
+			return NEED_MORE;
+		}
+
+		/**
+		 * @return the offset after the first occurrence of the terminator at or after i
+		 */
+		private int indexOf(int i, char... terminator) {
+			int limit = window.limit() - terminator.length;
+			for (; i <= limit; i++) {
+				int j = 0;
+				while (j < terminator.length && window.get(i + j) == terminator[j]) {
+					j++;
+				}
+				if (j == terminator.length) {
+					return i + j;
+				}
+			}
+			return NEED_MORE;
+		}
+
+		private boolean startsWith(int i, String s) {
+			if (i + s.length() > window.limit()) {
+				return false;
+			}
+			for (int j = 0; j < s.length(); j++) {
+				if (window.get(i + j) != s.charAt(j)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+		}
+	}
+}
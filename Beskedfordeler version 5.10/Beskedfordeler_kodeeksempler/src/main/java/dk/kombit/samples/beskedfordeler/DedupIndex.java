@@ -0,0 +1,28 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.Closeable;
+import java.io.Flushable;
+
+/**
+ * Set of BeskedIds that have already been handled, used for idempotent handling of redelivered messages.
+ * Implementations are safe for use by concurrent threads.
+ */
+public interface DedupIndex extends Closeable, Flushable {
+	/**
+	 * @param beskedId a BeskedId UUID
+	 * @return true if beskedId has been added within the retention window
+	 */
+	boolean contains(String beskedId);
+
+	/**
+	 * Remembers an id.
+	 * @param beskedId a BeskedId UUID
+	 * @return true if beskedId was not already present
+	 */
+	boolean add(String beskedId);
+
+	/**
+	 * @return the number of ids currently remembered
+	 */
+	int size();
+}
@@ -0,0 +1,263 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
+
+/**
+ * Light-weight view of the envelope of a {@link HaendelsesbeskedType}, read directly from the raw XML bytes.
+ *
+ * {@link #peek(byte[])} streams through the document with StAX and only picks up BeskedId, Filtreringsdata
+ * (Beskedtype, BeskedAnsvarligAktoer, TilladtModtager, RelateretObjekt) and Leveranceinformation. Parsing stops
+ * when Leveranceinformation has been read, so Beskeddata is never touched. This is enough for routing and
+ * duplicate detection, and the full JAXB graph only needs to be built for messages that are actually handled.
+ */
+public class HaendelsesbeskedEnvelope {
+	private static final String BESKEDKUVERT_NS = "urn:oio:besked:kuvert:1.0";
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * A RelateretObjekt from Filtreringsdata.
+	 */
+	public static class RelateretObjekt {
+		private String objektId;
+		private String objektType;
+		private String objektRolle;
+
+		/**
+		 * @return the UUID or URN of ObjektId, e.g. urn:oio:cpr-nr:nnnnnnnnnn
+		 */
+		public String getObjektId() {
+			return objektId;
+		}
+
+		/**
+		 * @return the UUID or URN of ObjektType
+		 */
+		public String getObjektType() {
+			return objektType;
+		}
+
+		/**
+		 * @return the UUID or URN of ObjektRolle
+		 */
+		public String getObjektRolle() {
+			return objektRolle;
+		}
+
+		@Override
+		public String toString() {
+			return "{objektId:"+objektId+",objektType:"+objektType+",objektRolle:"+objektRolle+"}";
+		}
+	}
+
+	private String beskedId;
+	private String beskedtype;
+	private String beskedAnsvarligAktoer;
+	private final List<String> tilladtModtager = new ArrayList<String>();
+	private final List<RelateretObjekt> relateretObjekt = new ArrayList<RelateretObjekt>();
+	private String dannelsestidspunkt;
+	private String transaktionsId;
+	private String sikkerhedsklassificering;
+
+	private HaendelsesbeskedEnvelope() {
+	}
+
+	/**
+	 * Reads the envelope of a Haendelsesbesked without unmarshalling the full message.
+	 * @param besked the raw (UTF-8 or declared encoding) XML document
+	 * @return the envelope view of besked
+	 * @throws XMLStreamException thrown if besked is not well-formed up to and including Leveranceinformation
+	 */
+	public static HaendelsesbeskedEnvelope peek(byte[] besked) throws XMLStreamException {
+		return peek(besked, 0, besked.length);
+	}
+
+	/**
+	 * Reads the envelope of a Haendelsesbesked stored in a part of a byte array.
+	 * @param buffer array containing the XML document
+	 * @param offset start of the document in buffer
+	 * @param length length of the document in bytes
+	 * @return the envelope view of the document
+	 * @throws XMLStreamException thrown if the document is not well-formed up to and including Leveranceinformation
+	 */
+	public static HaendelsesbeskedEnvelope peek(byte[] buffer, int offset, int length) throws XMLStreamException {
+		XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(buffer, offset, length));
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static HaendelsesbeskedEnvelope read(XMLStreamReader reader) throws XMLStreamException {
+		HaendelsesbeskedEnvelope envelope = new HaendelsesbeskedEnvelope();
+		// local names of the open elements, innermost first
+		Deque<String> path = new ArrayDeque<String>();
+		RelateretObjekt currentObjekt = null;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				String name = path.pop();
+				if (BESKEDKUVERT_NS.equals(reader.getNamespaceURI())) {
+					if ("RelateretObjekt".equals(name)) {
+						envelope.relateretObjekt.add(currentObjekt);
+						currentObjekt = null;
+					} else if ("Leveranceinformation".equals(name)) {
+						// Nothing of interest after this point
+						break;
+					}
+				}
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+
+			String name = reader.getLocalName();
+			if (path.size() == 1 && "Beskeddata".equals(name)) {
+				break;
+			}
+			if ("RelateretObjekt".equals(name) && BESKEDKUVERT_NS.equals(reader.getNamespaceURI())) {
+				currentObjekt = new RelateretObjekt();
+			}
+			if ("UUIDIdentifikator".equals(name) || "URNIdentifikator".equals(name) || "TidsstempelDatoTid".equals(name)) {
+				// getElementText() consumes the END_ELEMENT, so the element is never pushed
+				String value = reader.getElementText().trim();
+				envelope.assign(path, name, value, currentObjekt);
+			} else {
+				path.push(name);
+			}
+		}
+		return envelope;
+	}
+
+	private void assign(Deque<String> path, String name, String value, RelateretObjekt currentObjekt) {
+		String parent = path.peek();
+		if (parent == null) {
+			return;
+		}
+		boolean uuid = "UUIDIdentifikator".equals(name);
+		if (path.size() == 2) {
+			if ("BeskedId".equals(parent) && uuid) {
+				beskedId = value;
+			}
+			return;
+		}
+		String section = path.size() > 1 ? getAncestor(path, 1) : null;
+		if ("Filtreringsdata".equals(section)) {
+			if ("Beskedtype".equals(parent)) {
+				beskedtype = value;
+			} else if ("BeskedAnsvarligAktoer".equals(parent)) {
+				beskedAnsvarligAktoer = value;
+			} else if ("TilladtModtager".equals(parent)) {
+				tilladtModtager.add(value);
+			}
+		} else if ("RelateretObjekt".equals(section) && currentObjekt != null) {
+			if ("ObjektId".equals(parent)) {
+				currentObjekt.objektId = value;
+			} else if ("ObjektType".equals(parent)) {
+				currentObjekt.objektType = value;
+			} else if ("ObjektRolle".equals(parent)) {
+				currentObjekt.objektRolle = value;
+			}
+		} else if ("Leveranceinformation".equals(section)) {
+			if ("Dannelsestidspunkt".equals(parent)) {
+				dannelsestidspunkt = value;
+			} else if ("TransaktionsId".equals(parent)) {
+				transaktionsId = value;
+			} else if ("Sikkerhedsklassificering".equals(parent)) {
+				sikkerhedsklassificering = value;
+			}
+		}
+	}
+
+	private static String getAncestor(Deque<String> path, int level) {
+		int i = 0;
+		for (String name : path) {
+			if (i++ == level) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return BeskedId.UUIDIdentifikator, or null if not present
+	 */
+	public String getBeskedId() {
+		return beskedId;
+	}
+
+	/**
+	 * @return Filtreringsdata.Beskedtype (UUID or URN), or null if not present
+	 */
+	public String getBeskedtype() {
+		return beskedtype;
+	}
+
+	/**
+	 * @return Filtreringsdata.BeskedAnsvarligAktoer (UUID or URN), or null if not present
+	 */
+	public String getBeskedAnsvarligAktoer() {
+		return beskedAnsvarligAktoer;
+	}
+
+	/**
+	 * @return Filtreringsdata.TilladtModtager identifiers (UUID or URN) in document order
+	 */
+	public List<String> getTilladtModtager() {
+		return Collections.unmodifiableList(tilladtModtager);
+	}
+
+	/**
+	 * @return Filtreringsdata.RelateretObjekt entries in document order
+	 */
+	public List<RelateretObjekt> getRelateretObjekt() {
+		return Collections.unmodifiableList(relateretObjekt);
+	}
+
+	/**
+	 * @return Leveranceinformation.Dannelsestidspunkt.TidsstempelDatoTid in its lexical form, or null if not present
+	 */
+	public String getDannelsestidspunkt() {
+		return dannelsestidspunkt;
+	}
+
+	/**
+	 * @return Leveranceinformation.TransaktionsId (UUID or URN), or null if not present
+	 */
+	public String getTransaktionsId() {
+		return transaktionsId;
+	}
+
+	/**
+	 * @return Leveranceinformation.Sikkerhedsklassificering (UUID or URN), or null if not present
+	 */
+	public String getSikkerhedsklassificering() {
+		return sikkerhedsklassificering;
+	}
+
+	@Override
+	public String toString() {
+		return "{beskedId:"+beskedId+",beskedtype:"+beskedtype+",tilladtModtager:"+tilladtModtager
+				+",relateretObjekt:"+relateretObjekt+",dannelsestidspunkt:"+dannelsestidspunkt+"}";
+	}
+}
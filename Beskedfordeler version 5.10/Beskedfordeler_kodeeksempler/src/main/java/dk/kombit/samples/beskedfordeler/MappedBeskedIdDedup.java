@@ -0,0 +1,276 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of handled BeskedIds kept in a memory-mapped file, so duplicates are recognized after a restart or crash.
+ *
+ * The file holds a small header and two open-addressing tables of 128-bit UUIDs (the current and previous
+ * generation, rotated in the same way as {@link BeskedIdDedup}). Opening an existing file only maps it, there is
+ * nothing to replay. Ids written to the mapping survive the death of the process as soon as they are added, and
+ * {@link #flush()} forces them to disk so they also survive a crash of the machine. Flushing is done every
+ * flushIntervalMsecs, or by the caller (e.g. before acknowledging messages) when flushIntervalMsecs is 0. The file
+ * is locked while it is open, so it can only be used by one index (and process) at a time.
+ */
+public class MappedBeskedIdDedup implements DedupIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedBeskedIdDedup.class);
+
+	private static final long MAGIC = 0x4246444544555031L; // "BFDEDUP1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final double LOAD_FACTOR = 0.6;
+	private static final int MAX_SLOTS = 1 << 26;
+
+	// Header layout
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 8;
+	private static final int SLOTS_OFFSET = 12;
+	private static final int CURRENT_OFFSET = 16;
+	private static final int GENERATION_OFFSET = 32;
+	private static final int GENERATION_HEADER_SIZE = 16; // created (long), size (int), hasZero (int)
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] tables = new MappedByteBuffer[2];
+	private final int slots;
+	private final int maxEntries;
+	private final long retentionMsecs;
+	private int current;
+
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Opens the index in file, creating it if it does not exist.
+	 * @param file the index file
+	 * @param capacity the number of ids that can be remembered within one retention window (ignored for an existing file)
+	 * @param retentionMsecs the minimum time an id is remembered
+	 * @param flushIntervalMsecs how often to force changes to disk, 0 to leave it to the caller of {@link #flush()}
+	 * @throws IOException thrown if the file cannot be opened, is in use by another index or is not a dedup index
+	 */
+	public MappedBeskedIdDedup(File file, int capacity, long retentionMsecs, long flushIntervalMsecs) throws IOException {
+		this.file = file;
+		this.retentionMsecs = retentionMsecs;
+		boolean exists = file.exists() && file.length() > 0;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			// Another process writing to the same tables would corrupt them, so fail rather than share the file
+			FileLock lock;
+			try {
+				lock = fc.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null) {
+				throw new IOException("Dedup index "+file+" is already open in this or another process");
+			}
+			// Each table is mapped as one buffer, so it must stay below 2 GB
+			int requestedSlots = Math.min(MAX_SLOTS, Integer.highestOneBit((int) Math.ceil(Math.max(16, capacity) / LOAD_FACTOR) - 1) << 1);
+			if (exists) {
+				header = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+				if (header.getLong(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+					throw new IOException(file+" is not a BeskedId dedup index");
+				}
+				slots = header.getInt(SLOTS_OFFSET);
+				if (slots != requestedSlots) {
+					LOGGER.info("Dedup index "+file+" was created with "+slots+" slots, keeping that size");
+				}
+			} else {
+				slots = requestedSlots;
+				header = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			}
+			long tableSize = (long) slots * 16;
+			tables[0] = fc.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, tableSize);
+			tables[1] = fc.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + tableSize, tableSize);
+			if (!exists) {
+				long now = System.currentTimeMillis();
+				header.putInt(VERSION_OFFSET, VERSION);
+				header.putInt(SLOTS_OFFSET, slots);
+				header.putInt(CURRENT_OFFSET, 0);
+				for (int g = 0; g < 2; g++) {
+					setCreated(g, now);
+					setSize(g, 0);
+					setHasZero(g, false);
+				}
+				// The magic number is written last, so a file that was not completely initialized is rejected
+				header.putLong(MAGIC_OFFSET, MAGIC);
+				header.force();
+			}
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+		this.maxEntries = (int) (slots * LOAD_FACTOR);
+		this.current = header.getInt(CURRENT_OFFSET);
+		LOGGER.debug("Opened dedup index "+file+" with "+size()+" ids");
+
+		if (flushIntervalMsecs > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "dedup-flush");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(() -> {
+				try {
+					flush();
+				} catch (Exception e) {
+					LOGGER.warn("Caught exception flushing dedup index "+file,e);
+				}
+			}, flushIntervalMsecs, flushIntervalMsecs, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean contains(String beskedId) {
+		long[] key = BeskedIdDedup.toKey(beskedId);
+		rotateIfExpired(System.currentTimeMillis());
+		return contains(current, key[0], key[1]) || contains(1 - current, key[0], key[1]);
+	}
+
+	@Override
+	public synchronized boolean add(String beskedId) {
+		long[] key = BeskedIdDedup.toKey(beskedId);
+		long now = System.currentTimeMillis();
+		rotateIfExpired(now);
+		if (contains(current, key[0], key[1]) || contains(1 - current, key[0], key[1])) {
+			return false;
+		}
+		if (getSize(current) >= maxEntries) {
+			rotate(now);
+		}
+		insert(current, key[0], key[1]);
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return getSize(0) + getSize(1);
+	}
+
+	/**
+	 * Forces the ids added so far to disk.
+	 */
+	@Override
+	public synchronized void flush() {
+		tables[0].force();
+		tables[1].force();
+		header.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdownNow();
+		}
+		synchronized (this) {
+			flush();
+			raf.close();
+		}
+		LOGGER.debug("Closed dedup index "+file);
+	}
+
+	private boolean contains(int generation, long hi, long lo) {
+		if (hi == 0 && lo == 0) {
+			return getHasZero(generation);
+		}
+		MappedByteBuffer table = tables[generation];
+		int mask = slots - 1;
+		int slot = (int) BeskedIdDedup.hash(hi, lo) & mask;
+		while (true) {
+			int offset = slot * 16;
+			long h = table.getLong(offset);
+			long l = table.getLong(offset + 8);
+			if (h == 0 && l == 0) {
+				return false;
+			}
+			if (h == hi && l == lo) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void insert(int generation, long hi, long lo) {
+		if (hi == 0 && lo == 0) {
+			setHasZero(generation, true);
+		} else {
+			MappedByteBuffer table = tables[generation];
+			int mask = slots - 1;
+			int slot = (int) BeskedIdDedup.hash(hi, lo) & mask;
+			while (table.getLong(slot * 16) != 0 || table.getLong(slot * 16 + 8) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			// The low bits are written first, so an interrupted write leaves a key that matches nothing instead of a wrong one
+			table.putLong(slot * 16 + 8, lo);
+			table.putLong(slot * 16, hi);
+		}
+		setSize(generation, getSize(generation) + 1);
+	}
+
+	private void rotateIfExpired(long now) {
+		if (now - getCreated(current) >= retentionMsecs) {
+			rotate(now);
+			if (now - getCreated(1 - current) >= retentionMsecs * 2) {
+				// Nothing added for two windows, the previous generation has expired as well
+				clear(1 - current, now);
+			}
+		}
+	}
+
+	private void rotate(long now) {
+		// The oldest generation is emptied and becomes the current one
+		int oldest = 1 - current;
+		clear(oldest, now);
+		header.putInt(CURRENT_OFFSET, oldest);
+		current = oldest;
+	}
+
+	private void clear(int generation, long now) {
+		MappedByteBuffer table = tables[generation];
+		for (int offset = 0; offset < slots * 16; offset += 8) {
+			table.putLong(offset, 0L);
+		}
+		setSize(generation, 0);
+		setHasZero(generation, false);
+		setCreated(generation, now);
+	}
+
+	private long getCreated(int generation) {
+		return header.getLong(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE);
+	}
+
+	private void setCreated(int generation, long created) {
+		header.putLong(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE, created);
+	}
+
+	private int getSize(int generation) {
+		return header.getInt(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE + 8);
+	}
+
+	private void setSize(int generation, int size) {
+		header.putInt(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE + 8, size);
+	}
+
+	private boolean getHasZero(int generation) {
+		return header.getInt(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE + 12) != 0;
+	}
+
+	private void setHasZero(int generation, boolean hasZero) {
+		header.putInt(GENERATION_OFFSET + generation * GENERATION_HEADER_SIZE + 12, hasZero ? 1 : 0);
+	}
+}
@@ -0,0 +1,355 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Secondary indexes over the messages in a {@link MessageJournal}, mapping BeskedId, Beskedtype,
+ * RelateretObjekt.ObjektId and Dannelsestidspunkt to the locations of the messages in the journal.
+ *
+ * The writer of the journal opens the index for writing, which only appends the entries to an index file next to
+ * the journal; on open it finds the last indexed location in the file and indexes any journal records written
+ * after it (e.g. because the process died before the index file was flushed), so nothing is kept in memory by a
+ * long running writer. An index opened read-only loads the file into sorted maps, so both point and range lookups
+ * are cheap, and indexes the records not yet in the file without writing anything, so it can be used while the
+ * journal is being written by another process.
+ */
+public class MessageIndex implements Closeable, Flushable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MessageIndex.class);
+
+	private static final String INDEX_SUFFIX = ".index";
+
+	/**
+	 * The indexed fields.
+	 */
+	public enum Key {
+		BESKED_ID,
+		BESKEDTYPE,
+		OBJEKT_ID,
+		/** Dannelsestidspunkt, values are given as xsd:dateTime */
+		DANNELSESTIDSPUNKT
+	}
+
+	private final File directory;
+	private final String name;
+	private final boolean readOnly;
+	// Only kept when read-only, the writer has no lookups
+	private final Map<Key, TreeMap<String, List<Long>>> indexes = new EnumMap<Key, TreeMap<String, List<Long>>>(Key.class);
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final DatatypeFactory datatypeFactory;
+	private DataOutputStream out;
+	private long lastLocation = -1;
+
+	/**
+	 * Opens the index of a journal, indexing journal records not yet in the index file.
+	 * @param directory the journal directory
+	 * @param name prefix of the journal's segment file names
+	 * @param readOnly true to load the index file for lookups and only read the index file and journal, false to
+	 * append entries to the index file
+	 * @throws IOException thrown if the index file or journal cannot be read
+	 */
+	public MessageIndex(File directory, String name, boolean readOnly) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.readOnly = readOnly;
+		for (Key key : Key.values()) {
+			indexes.put(key, new TreeMap<String, List<Long>>());
+		}
+		try {
+			datatypeFactory = DatatypeFactory.newInstance();
+		} catch (DatatypeConfigurationException e) {
+			throw new IOException(e);
+		}
+
+		long start = System.currentTimeMillis();
+		File file = new File(directory, name+INDEX_SUFFIX);
+		long validLength = load(file);
+		if (!readOnly) {
+			if (file.exists() && file.length() > validLength) {
+				// Drop an entry that was only partly written
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(validLength);
+				}
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		int caughtUp = catchUp();
+		LOGGER.debug("Opened index "+file+" in "+(System.currentTimeMillis()-start)+" ms, "+caughtUp+" messages indexed from journal");
+	}
+
+	/**
+	 * Indexes a message.
+	 * @param envelope the envelope of the message
+	 * @param location the location of the message in the journal
+	 * @throws IOException thrown if the index file cannot be written
+	 */
+	public void add(HaendelsesbeskedEnvelope envelope, long location) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (envelope.getBeskedId() != null) {
+				put(Key.BESKED_ID, envelope.getBeskedId(), location);
+			}
+			if (envelope.getBeskedtype() != null) {
+				put(Key.BESKEDTYPE, envelope.getBeskedtype(), location);
+			}
+			for (HaendelsesbeskedEnvelope.RelateretObjekt objekt : envelope.getRelateretObjekt()) {
+				if (objekt.getObjektId() != null) {
+					put(Key.OBJEKT_ID, objekt.getObjektId(), location);
+				}
+			}
+			if (envelope.getDannelsestidspunkt() != null) {
+				try {
+					put(Key.DANNELSESTIDSPUNKT, timeKey(envelope.getDannelsestidspunkt()), location);
+				} catch (IllegalArgumentException e) {
+					LOGGER.warn("Not indexing invalid Dannelsestidspunkt "+envelope.getDannelsestidspunkt()+" of message "+envelope.getBeskedId());
+				}
+			}
+			lastLocation = Math.max(lastLocation, location);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param key the indexed field
+	 * @param value the value to look up (xsd:dateTime for {@link Key#DANNELSESTIDSPUNKT})
+	 * @return the journal locations of the messages with value, oldest first
+	 * @throws IllegalStateException thrown if the index is not read-only
+	 */
+	public List<Long> lookup(Key key, String value) {
+		checkReadOnly();
+		String k = key == Key.DANNELSESTIDSPUNKT ? timeKey(value) : value;
+		lock.readLock().lock();
+		try {
+			List<Long> locations = indexes.get(key).get(k);
+			return locations == null ? Collections.<Long>emptyList() : new ArrayList<Long>(locations);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param key the indexed field
+	 * @param from the lowest value to include, or null for no lower bound
+	 * @param to the value to stop before, or null for no upper bound
+	 * @return the journal locations of the messages with values in [from, to), ordered by value
+	 * @throws IllegalStateException thrown if the index is not read-only
+	 */
+	public List<Long> range(Key key, String from, String to) {
+		checkReadOnly();
+		String f = from != null && key == Key.DANNELSESTIDSPUNKT ? timeKey(from) : from;
+		String t = to != null && key == Key.DANNELSESTIDSPUNKT ? timeKey(to) : to;
+		lock.readLock().lock();
+		try {
+			TreeMap<String, List<Long>> index = indexes.get(key);
+			Map<String, List<Long>> range;
+			if (f != null && t != null) {
+				range = index.subMap(f, true, t, false);
+			} else if (f != null) {
+				range = index.tailMap(f, true);
+			} else if (t != null) {
+				range = index.headMap(t, false);
+			} else {
+				range = index;
+			}
+			List<Long> locations = new ArrayList<Long>();
+			for (List<Long> l : range.values()) {
+				locations.addAll(l);
+			}
+			return locations;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param key the indexed field
+	 * @return the number of distinct values of key
+	 * @throws IllegalStateException thrown if the index is not read-only
+	 */
+	public int size(Key key) {
+		checkReadOnly();
+		lock.readLock().lock();
+		try {
+			return indexes.get(key).size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads a message found by a lookup.
+	 * @param location a location returned by {@link #lookup(Key, String)} or {@link #range(Key, String, String)}
+	 * @return the message as stored in the journal
+	 * @throws IOException thrown if the journal cannot be read
+	 */
+	public byte[] read(long location) throws IOException {
+		return MessageJournal.readRecord(directory, name, location);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (out != null) {
+				out.flush();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void checkReadOnly() {
+		if (!readOnly) {
+			throw new IllegalStateException("Index of "+name+" is opened for writing, open it read-only to search it");
+		}
+	}
+
+	private void put(Key key, String value, long location) throws IOException {
+		if (readOnly) {
+			insert(key, value, location);
+		} else if (out != null) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(key.ordinal());
+			out.writeShort(bytes.length);
+			out.write(bytes);
+			out.writeLong(location);
+		}
+	}
+
+	private void insert(Key key, String value, long location) {
+		TreeMap<String, List<Long>> index = indexes.get(key);
+		List<Long> locations = index.get(value);
+		if (locations == null) {
+			locations = new ArrayList<Long>(1);
+			index.put(value, locations);
+		}
+		locations.add(location);
+	}
+
+	/**
+	 * Loads the index file, or when opened for writing only finds the last indexed location in it.
+	 * @return the length of the file up to the last complete entry
+	 */
+	private long load(File file) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		long validLength = 0;
+		Key[] keys = Key.values();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int ordinal = in.readUnsignedByte();
+				int length = in.readUnsignedShort();
+				byte[] bytes = null;
+				if (readOnly) {
+					bytes = new byte[length];
+					in.readFully(bytes);
+				} else if (in.skipBytes(length) < length) {
+					break;
+				}
+				long location = in.readLong();
+				if (ordinal >= keys.length) {
+					LOGGER.warn("Invalid entry in index "+file+" at offset "+validLength+", ignoring rest of file");
+					break;
+				}
+				if (readOnly) {
+					insert(keys[ordinal], new String(bytes, StandardCharsets.UTF_8), location);
+				}
+				lastLocation = Math.max(lastLocation, location);
+				validLength += 1 + 2 + length + 8;
+			}
+		} catch (EOFException e) {
+			// End of file, or an entry that was cut off
+		}
+		return validLength;
+	}
+
+	/**
+	 * Indexes the journal records after the last indexed location.
+	 * @return the number of records indexed
+	 */
+	private int catchUp() throws IOException {
+		int count = 0;
+		long fromSegment = lastLocation < 0 ? 0 : MessageJournal.segmentOf(lastLocation);
+		for (File segment : MessageJournal.listSegments(directory, name)) {
+			long segmentNumber = MessageJournal.segmentNumber(segment, name);
+			if (segmentNumber < fromSegment) {
+				continue;
+			}
+			long offset = segmentNumber == fromSegment && lastLocation >= 0 ? MessageJournal.offsetOf(lastLocation) : 0;
+			try (MessageJournal.Reader reader = new MessageJournal.Reader(segment, offset)) {
+				while (true) {
+					long location = MessageJournal.location(segmentNumber, reader.getPosition());
+					byte[] record = reader.next();
+					if (record == null) {
+						break;
+					}
+					if (location <= lastLocation) {
+						continue;
+					}
+					try {
+						add(HaendelsesbeskedEnvelope.peek(record), location);
+						count++;
+					} catch (XMLStreamException e) {
+						LOGGER.warn("Not indexing unreadable message at offset "+MessageJournal.offsetOf(location)+" in "+segment);
+					}
+				}
+			}
+		}
+		if (count > 0) {
+			flush();
+		}
+		return count;
+	}
+
+	/**
+	 * Converts an xsd:dateTime to a key that sorts in time order (milliseconds since 1970, zero padded).
+	 */
+	private String timeKey(String dateTime) {
+		long millis;
+		synchronized (datatypeFactory) {
+			millis = datatypeFactory.newXMLGregorianCalendar(dateTime.trim()).toGregorianCalendar().getTimeInMillis();
+		}
+		return String.format("%019d", millis);
+	}
+}
@@ -0,0 +1,546 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of messages, written to a directory as a series of segment files.
+ *
+ * Each record is stored as its length, a CRC32 of its contents and the contents, so a record that was only partly
+ * written when the process died is recognized and ignored by the {@link Reader}. Records are written through a
+ * buffer, and the {@link SyncPolicy} decides when the segment is forced to disk: after every record, every N records
+ * or every N milliseconds. Threads waiting for a sync share it (group commit), so one fsync covers all records
+ * appended while the previous one was in progress. A new segment is started when the current one exceeds a size or
+ * age limit, and always when the journal is opened, so existing segments are never written to again.
+ * Each record has a location (segment number and offset) that can be given to {@link #readRecord(File, String, long)}.
+ *
+ * A journal opened with a {@link CompressionDictionary} writes {@link CompressedSegment}s, where the records are
+ * collected in blocks of about 64 KB (or fewer, when a sync comes first) that are deflated with the dictionary.
+ * Locations and the size limit of a segment refer to the uncompressed records, and the {@link Reader} reads both
+ * formats, so a journal may hold segments of either.
+ */
+public class MessageJournal implements Closeable, Flushable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MessageJournal.class);
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int BLOCK_SIZE = 64 * 1024;
+	// A location holds the segment number in the high bits and the offset in the segment in the low bits
+	private static final int OFFSET_BITS = 40;
+
+	/**
+	 * When appended records are forced to disk.
+	 */
+	public static final class SyncPolicy {
+		private final int records;
+		private final long msecs;
+
+		private SyncPolicy(int records, long msecs) {
+			this.records = records;
+			this.msecs = msecs;
+		}
+
+		/**
+		 * @return policy forcing every record to disk before {@link MessageJournal#append(byte[])} returns
+		 */
+		public static SyncPolicy everyMessage() {
+			return new SyncPolicy(1, 0);
+		}
+
+		/**
+		 * @param records the number of records written between syncs
+		 * @return policy forcing the journal to disk when records have been appended since the last sync
+		 */
+		public static SyncPolicy everyRecords(int records) {
+			return new SyncPolicy(Math.max(1, records), 0);
+		}
+
+		/**
+		 * @param msecs the time between syncs
+		 * @return policy forcing the journal to disk in the background every msecs milliseconds
+		 */
+		public static SyncPolicy everyMsecs(long msecs) {
+			return new SyncPolicy(0, Math.max(1, msecs));
+		}
+
+		/**
+		 * Parses a policy given as an option: "message", "&lt;n&gt;ms" or "&lt;n&gt;" (records).
+		 * @param policy the policy as text
+		 * @return the policy
+		 * @throws IllegalArgumentException thrown if policy is not understood
+		 */
+		public static SyncPolicy parse(String policy) {
+			String p = policy.trim().toLowerCase();
+			try {
+				if ("message".equals(p)) {
+					return everyMessage();
+				} else if (p.endsWith("ms")) {
+					return everyMsecs(Long.parseLong(p.substring(0, p.length()-2).trim()));
+				} else {
+					return everyRecords(Integer.parseInt(p));
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown journal sync policy "+policy, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return msecs > 0 ? msecs+"ms" : records == 1 ? "message" : Integer.toString(records);
+		}
+	}
+
+	private final File directory;
+	private final String name;
+	private final SyncPolicy syncPolicy;
+	private final long maxSegmentBytes;
+	private final long maxSegmentAgeMsecs;
+	private final byte[] dictionary;
+
+	// Guarded by this
+	private long segmentNumber;
+	private FileOutputStream segmentStream;
+	private FileChannel segmentChannel;
+	private DataOutputStream out;
+	private CompressedSegment.Writer blockWriter;
+	private long segmentBytes;
+	private long segmentCreated;
+	private long appended = 0;
+	private long syncRequested = 0;
+	private boolean closed = false;
+	private final CRC32 crc = new CRC32();
+
+	// Number of the last record known to be on disk, only syncs are serialized on syncLock
+	private final AtomicLong synced = new AtomicLong();
+	private final Object syncLock = new Object();
+
+	private final ScheduledExecutorService syncer;
+
+	/**
+	 * Opens a journal, compressing it with a dictionary trained from sample messages if requested.
+	 * @param directory the directory holding the segments, created if missing
+	 * @param name prefix of the segment file names
+	 * @param syncPolicy when records are forced to disk
+	 * @param maxSegmentBytes start a new segment when the records in the current one are larger than this
+	 * @param maxSegmentAgeMsecs start a new segment when the current one is older than this (0 for no limit)
+	 * @param compress true to compress the segments, see {@link CompressionDictionary}
+	 * @param samplesDirectory directory with the *.xml sample messages to train the dictionary from, or null for the test messages
+	 * @return the opened journal
+	 * @throws IOException thrown if the samples cannot be read or the first segment cannot be created
+	 */
+	public static MessageJournal open(File directory, String name, SyncPolicy syncPolicy, long maxSegmentBytes, long maxSegmentAgeMsecs,
+			boolean compress, String samplesDirectory) throws IOException {
+		byte[] dictionary = compress ? CompressionDictionary.train(CompressionDictionary.loadSamples(samplesDirectory)) : null;
+		return new MessageJournal(directory, name, syncPolicy, maxSegmentBytes, maxSegmentAgeMsecs, dictionary);
+	}
+
+	/**
+	 * Opens a journal and starts a new segment in it.
+	 * @param directory the directory holding the segments, created if missing
+	 * @param name prefix of the segment file names
+	 * @param syncPolicy when records are forced to disk
+	 * @param maxSegmentBytes start a new segment when the current one is larger than this
+	 * @param maxSegmentAgeMsecs start a new segment when the current one is older than this (0 for no limit)
+	 * @throws IOException thrown if the first segment cannot be created
+	 */
+	public MessageJournal(File directory, String name, SyncPolicy syncPolicy, long maxSegmentBytes, long maxSegmentAgeMsecs) throws IOException {
+		this(directory, name, syncPolicy, maxSegmentBytes, maxSegmentAgeMsecs, null);
+	}
+
+	/**
+	 * Opens a journal and starts a new segment in it, compressing the segments with a dictionary.
+	 * @param directory the directory holding the segments, created if missing
+	 * @param name prefix of the segment file names
+	 * @param syncPolicy when records are forced to disk
+	 * @param maxSegmentBytes start a new segment when the records in the current one are larger than this
+	 * @param maxSegmentAgeMsecs start a new segment when the current one is older than this (0 for no limit)
+	 * @param dictionary the dictionary to compress with, see {@link CompressionDictionary}, or null for uncompressed segments
+	 * @throws IOException thrown if the first segment or the dictionary cannot be written
+	 */
+	public MessageJournal(File directory, String name, SyncPolicy syncPolicy, long maxSegmentBytes, long maxSegmentAgeMsecs,
+			byte[] dictionary) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.syncPolicy = syncPolicy;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentAgeMsecs = maxSegmentAgeMsecs;
+		this.dictionary = dictionary;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory "+directory);
+		}
+		if (dictionary != null) {
+			// Kept with the journal, it is needed to read the segments
+			CompressionDictionary.store(directory, name, dictionary);
+		}
+
+		// Continue numbering after the existing segments
+		List<File> existing = listSegments(directory, name);
+		segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size()-1), name);
+		openSegment();
+
+		if (syncPolicy.msecs > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "journal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(() -> {
+				try {
+					flush();
+				} catch (Exception e) {
+					LOGGER.warn("Caught exception syncing journal "+name,e);
+				}
+			}, syncPolicy.msecs, syncPolicy.msecs, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+		LOGGER.debug("Opened journal "+name+" in "+directory+" with sync policy "+syncPolicy+(dictionary != null ? ", compressed" : ""));
+	}
+
+	/**
+	 * Appends a record to the journal, and waits for it to be on disk if the sync policy says so.
+	 * @param record the record, e.g. a message as received
+	 * @return the location of the record
+	 * @throws IOException thrown if the record cannot be written
+	 */
+	public long append(byte[] record) throws IOException {
+		long number;
+		long location;
+		boolean sync = false;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Journal "+name+" is closed");
+			}
+			if (segmentBytes >= maxSegmentBytes || (maxSegmentAgeMsecs > 0 && System.currentTimeMillis() - segmentCreated >= maxSegmentAgeMsecs)) {
+				rotate();
+			}
+			if (blockWriter != null) {
+				if (RECORD_HEADER_SIZE + record.length > CompressedSegment.MAX_BLOCK_LENGTH) {
+					throw new IOException("Record of "+record.length+" bytes is too large for compressed journal "+name);
+				}
+				if (blockWriter.pending() + RECORD_HEADER_SIZE + record.length > CompressedSegment.MAX_BLOCK_LENGTH) {
+					// Readers do not trust a block header with a larger length
+					blockWriter.writeBlock();
+				}
+			}
+			location = location(segmentNumber, segmentBytes);
+			crc.reset();
+			crc.update(record, 0, record.length);
+			DataOutputStream records = blockWriter != null ? blockWriter.records() : out;
+			records.writeInt(record.length);
+			records.writeInt((int) crc.getValue());
+			records.write(record);
+			segmentBytes += RECORD_HEADER_SIZE + record.length;
+			if (blockWriter != null && blockWriter.pending() >= BLOCK_SIZE) {
+				blockWriter.writeBlock();
+			}
+			number = ++appended;
+			if (syncPolicy.records > 0 && number - syncRequested >= syncPolicy.records) {
+				syncRequested = number;
+				sync = true;
+			}
+		}
+		if (sync) {
+			sync(number);
+		}
+		return location;
+	}
+
+	/**
+	 * Forces all records appended so far to disk.
+	 * @throws IOException thrown if the journal cannot be written
+	 */
+	@Override
+	public void flush() throws IOException {
+		long number;
+		synchronized (this) {
+			number = appended;
+		}
+		sync(number);
+	}
+
+	/**
+	 * Forces the rest of the records to disk and closes the current segment.
+	 * @throws IOException thrown if the journal cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (syncer != null) {
+			// Not interrupted, an interrupt during force() would close the segment's channel
+			syncer.shutdown();
+			try {
+				syncer.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closeSegment();
+		}
+		LOGGER.debug("Closed journal "+name+" after "+appended+" records");
+	}
+
+	private void sync(long number) throws IOException {
+		synchronized (syncLock) {
+			if (synced.get() >= number) {
+				// Another thread's sync covered this record
+				return;
+			}
+			FileChannel channel;
+			long upTo;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				if (blockWriter != null) {
+					blockWriter.writeBlock();
+					blockWriter.flush();
+				}
+				out.flush();
+				channel = segmentChannel;
+				upTo = appended;
+			}
+			// Appending continues while the sync is in progress
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				boolean forcedOnClose;
+				synchronized (this) {
+					forcedOnClose = channel != segmentChannel || closed;
+				}
+				if (!forcedOnClose) {
+					// E.g. closed by an interrupt, the records are not known to be on disk
+					throw e;
+				}
+				// The segment was rotated or the journal closed, which also forced it to disk
+			}
+			markSynced(upTo);
+		}
+	}
+
+	private void markSynced(long number) {
+		long current;
+		do {
+			current = synced.get();
+		} while (current < number && !synced.compareAndSet(current, number));
+	}
+
+	private void rotate() throws IOException {
+		LOGGER.debug("Starting new segment of journal "+name+" after "+segmentBytes+" bytes");
+		closeSegment();
+		openSegment();
+	}
+
+	private void openSegment() throws IOException {
+		segmentNumber++;
+		File file = segmentFile(directory, name, segmentNumber);
+		segmentStream = new FileOutputStream(file, true);
+		segmentChannel = segmentStream.getChannel();
+		out = new DataOutputStream(new BufferedOutputStream(segmentStream, BUFFER_SIZE));
+		if (dictionary != null) {
+			blockWriter = new CompressedSegment.Writer(file, out, dictionary);
+		}
+		segmentBytes = 0;
+		segmentCreated = System.currentTimeMillis();
+	}
+
+	private void closeSegment() throws IOException {
+		try {
+			if (blockWriter != null) {
+				blockWriter.close();
+			}
+			out.flush();
+			segmentChannel.force(false);
+			markSynced(appended);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param directory the journal directory
+	 * @param name prefix of the segment file names
+	 * @return the segments of the journal, oldest first
+	 */
+	public static List<File> listSegments(File directory, final String name) {
+		File[] files = directory.listFiles((dir, fileName) -> fileName.startsWith(name+"-") && fileName.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files, (a, b) -> Long.compare(segmentNumber(a, name), segmentNumber(b, name)));
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	/**
+	 * @param directory the journal directory
+	 * @param name prefix of the segment file names
+	 * @param segmentNumber the number of the segment
+	 * @return the file of the segment
+	 */
+	public static File segmentFile(File directory, String name, long segmentNumber) {
+		return new File(directory, String.format("%s-%08d%s", name, segmentNumber, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * @param segment a segment file
+	 * @param name prefix of the segment file names
+	 * @return the number of the segment
+	 */
+	public static long segmentNumber(File segment, String name) {
+		String fileName = segment.getName();
+		try {
+			return Long.parseLong(fileName.substring(name.length()+1, fileName.length()-SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param segmentNumber the number of a segment
+	 * @param offset the offset of a record in the segment
+	 * @return the location of the record
+	 */
+	public static long location(long segmentNumber, long offset) {
+		return (segmentNumber << OFFSET_BITS) | offset;
+	}
+
+	/**
+	 * @param location a record location
+	 * @return the number of the segment holding the record
+	 */
+	public static long segmentOf(long location) {
+		return location >>> OFFSET_BITS;
+	}
+
+	/**
+	 * @param location a record location
+	 * @return the offset of the record in its segment
+	 */
+	public static long offsetOf(long location) {
+		return location & ((1L << OFFSET_BITS) - 1);
+	}
+
+	/**
+	 * Reads a single record.
+	 * @param directory the journal directory
+	 * @param name prefix of the segment file names
+	 * @param location the location returned by {@link #append(byte[])}
+	 * @return the record, or null if there is no complete record at location
+	 * @throws IOException thrown if the segment cannot be read
+	 */
+	public static byte[] readRecord(File directory, String name, long location) throws IOException {
+		try (Reader reader = new Reader(segmentFile(directory, name, segmentOf(location)), offsetOf(location))) {
+			return reader.next();
+		}
+	}
+
+	/**
+	 * Reads the records of one segment in the order they were written. Compressed segments are recognized and
+	 * inflated block by block.
+	 */
+	public static class Reader implements Closeable {
+		private final File segment;
+		private final DataInputStream in;
+		private final CRC32 crc = new CRC32();
+		private final long length;
+		private long position = 0;
+
+		/**
+		 * @param segment the segment file to read
+		 * @throws IOException thrown if the segment cannot be opened
+		 */
+		public Reader(File segment) throws IOException {
+			this(segment, 0);
+		}
+
+		/**
+		 * @param segment the segment file to read
+		 * @param offset the offset of the first record to read (in the uncompressed records of a compressed segment)
+		 * @throws IOException thrown if the segment cannot be opened
+		 */
+		public Reader(File segment, long offset) throws IOException {
+			this.segment = segment;
+			this.position = offset;
+			if (CompressedSegment.isCompressed(segment)) {
+				// Blocks are checked as they are read, a cut off block ends the records
+				this.length = Long.MAX_VALUE;
+				this.in = new DataInputStream(CompressedSegment.open(segment, offset));
+			} else {
+				this.length = segment.length();
+				FileInputStream file = new FileInputStream(segment);
+				file.getChannel().position(offset);
+				this.in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+			}
+		}
+
+		/**
+		 * @return the offset in the segment of the record returned by the next call to {@link #next()}
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the next record, or null at the end of the segment or at a record that was not completely written
+		 * @throws IOException thrown if the segment cannot be read
+		 */
+		public byte[] next() throws IOException {
+			int recordLength;
+			int checksum;
+			byte[] record;
+			try {
+				recordLength = in.readInt();
+				checksum = in.readInt();
+				if (recordLength < 0 || position + RECORD_HEADER_SIZE + recordLength > length) {
+					LOGGER.warn("Record at offset "+position+" in "+segment+" was not completely written, ignoring rest of segment");
+					return null;
+				}
+				record = new byte[recordLength];
+				in.readFully(record);
+			} catch (EOFException e) {
+				// Nothing more, or the last record was cut off
+				return null;
+			}
+			crc.reset();
+			crc.update(record, 0, record.length);
+			if ((int) crc.getValue() != checksum) {
+				LOGGER.warn("Checksum mismatch at offset "+position+" in "+segment+", ignoring rest of segment");
+				return null;
+			}
+			position += RECORD_HEADER_SIZE + recordLength;
+			return record;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Haendelsesbesked compiled into a byte template, for generating many messages that differ only in a few fields.
+ *
+ * {@link #compile(byte[])} scans the envelope of a message once and records where the values of the fields in
+ * {@link Slot} are. A {@link Renderer} then produces a new message by copying the bytes between the slots and the
+ * values set for them, without parsing, unmarshalling or marshalling; slots without a value keep the value of the
+ * template. A slot that occurs more than once (e.g. several TilladtModtager) gets the same value everywhere. The
+ * message is otherwise kept byte for byte, including its encoding (which must be UTF-8) and comments.
+ */
+public final class MessageTemplate {
+	private static final String UUID = "UUIDIdentifikator";
+	private static final String URN = "URNIdentifikator";
+	private static final String TIDSPUNKT = "TidsstempelDatoTid";
+
+	/**
+	 * The fields of a message that can be set when rendering, by the element holding the value.
+	 */
+	public enum Slot {
+		BESKED_ID("BeskedId", UUID),
+		BESKEDTYPE("Beskedtype", UUID),
+		BESKED_ANSVARLIG_AKTOER("BeskedAnsvarligAktoer", UUID),
+		TILLADT_MODTAGER("TilladtModtager", URN),
+		OBJEKT_REGISTRERING_ID("ObjektRegistreringId", UUID),
+		REGISTRERINGSTIDSPUNKT("Registreringstidspunkt", TIDSPUNKT),
+		OBJEKT_ANSVARLIG_MYNDIGHED("ObjektAnsvarligMyndighed", URN),
+		DANNELSESTIDSPUNKT("Dannelsestidspunkt", TIDSPUNKT);
+
+		private final String parent;
+		private final String element;
+
+		Slot(String parent, String element) {
+			this.parent = parent;
+			this.element = element;
+		}
+	}
+
+	private final byte[] template;
+	// Start and end of each slot value in template, in document order
+	private final int[] starts;
+	private final int[] ends;
+	private final Slot[] slots;
+	private final Map<Slot, String> defaults = new EnumMap<Slot, String>(Slot.class);
+
+	private MessageTemplate(byte[] template, List<int[]> ranges, List<Slot> slotList) {
+		this.template = template;
+		this.starts = new int[ranges.size()];
+		this.ends = new int[ranges.size()];
+		this.slots = slotList.toArray(new Slot[slotList.size()]);
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = ranges.get(i)[0];
+			ends[i] = ranges.get(i)[1];
+			if (!defaults.containsKey(slots[i])) {
+				defaults.put(slots[i], new String(template, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * Compiles a message into a template.
+	 * @param besked the message, UTF-8 encoded
+	 * @return the template
+	 * @throws IllegalArgumentException thrown if the envelope of besked is not well-formed
+	 */
+	public static MessageTemplate compile(byte[] besked) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		List<Slot> slotList = new ArrayList<Slot>();
+		// local names of the open elements, innermost first
+		Deque<String> path = new ArrayDeque<String>();
+		int i = 0;
+		while (i < besked.length) {
+			if (besked[i] != '<') {
+				i++;
+			} else if (startsWith(besked, i, "<!--")) {
+				i = skipPast(besked, i, "-->");
+			} else if (startsWith(besked, i, "<![CDATA[")) {
+				i = skipPast(besked, i, "]]>");
+			} else if (startsWith(besked, i, "<?") || startsWith(besked, i, "<!")) {
+				i = skipPast(besked, i, ">");
+			} else if (startsWith(besked, i, "</")) {
+				if (path.isEmpty()) {
+					throw new IllegalArgumentException("Unexpected end tag at byte "+i);
+				}
+				path.pop();
+				i = skipPast(besked, i, ">");
+			} else {
+				int nameEnd = i + 1;
+				while (nameEnd < besked.length && besked[nameEnd] != '>' && besked[nameEnd] != '/' && besked[nameEnd] > ' ') {
+					nameEnd++;
+				}
+				String name = new String(besked, i + 1, nameEnd - i - 1, StandardCharsets.UTF_8);
+				name = name.substring(name.indexOf(':') + 1);
+				int tagEnd = tagEnd(besked, nameEnd);
+				if (path.size() == 1 && "Beskeddata".equals(name)) {
+					// Only the envelope has slots
+					break;
+				}
+				i = tagEnd + 1;
+				if (besked[tagEnd - 1] == '/') {
+					continue;
+				}
+				Slot slot = slotFor(name, path);
+				path.push(name);
+				if (slot != null) {
+					int start = i;
+					int end = start;
+					while (end < besked.length && besked[end] != '<') {
+						end++;
+					}
+					// The whitespace around the value is part of the template
+					while (start < end && besked[start] <= ' ') {
+						start++;
+					}
+					while (end > start && besked[end - 1] <= ' ') {
+						end--;
+					}
+					ranges.add(new int[] {start, end});
+					slotList.add(slot);
+				}
+			}
+		}
+		return new MessageTemplate(besked, ranges, slotList);
+	}
+
+	/**
+	 * @param slot a slot
+	 * @return true if the template has the slot
+	 */
+	public boolean hasSlot(Slot slot) {
+		return defaults.containsKey(slot);
+	}
+
+	/**
+	 * @param slot a slot
+	 * @return the value of the first occurrence of the slot in the template, or null if it has none
+	 */
+	public String getDefault(Slot slot) {
+		return defaults.get(slot);
+	}
+
+	/**
+	 * @return a new renderer, to be used by one thread at a time
+	 */
+	public Renderer renderer() {
+		return new Renderer();
+	}
+
+	private static Slot slotFor(String element, Deque<String> path) {
+		String parent = path.peek();
+		for (Slot slot : Slot.values()) {
+			if (slot.element.equals(element) && slot.parent.equals(parent)) {
+				// BeskedId is a child of the root element, the other slots are inside Beskedkuvert
+				return slot != Slot.BESKED_ID || path.size() == 2 ? slot : null;
+			}
+		}
+		return null;
+	}
+
+	private static boolean startsWith(byte[] b, int i, String s) {
+		if (i + s.length() > b.length) {
+			return false;
+		}
+		for (int j = 0; j < s.length(); j++) {
+			if (b[i + j] != s.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipPast(byte[] b, int i, String s) {
+		for (int j = i; j + s.length() <= b.length; j++) {
+			if (startsWith(b, j, s)) {
+				return j + s.length();
+			}
+		}
+		throw new IllegalArgumentException("Unterminated markup at byte "+i);
+	}
+
+	private static int tagEnd(byte[] b, int i) {
+		byte quote = 0;
+		for (int j = i; j < b.length; j++) {
+			if (quote != 0) {
+				if (b[j] == quote) {
+					quote = 0;
+				}
+			} else if (b[j] == '"' || b[j] == '\'') {
+				quote = b[j];
+			} else if (b[j] == '>') {
+				return j;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated tag at byte "+i);
+	}
+
+	/**
+	 * Renders messages from the template. The values are kept between messages, so only the slots that change need
+	 * to be set for each message. Not thread-safe.
+	 */
+	public final class Renderer {
+		private static final int MAX_VALUE_BYTES = 256;
+
+		// Encoded value of each slot, or null to keep the value of the template
+		private final byte[][] values = new byte[Slot.values().length][];
+		private final int[] lengths = new int[Slot.values().length];
+		private final DateTimeFormatter secondFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+		private final ZoneId zone = ZoneId.systemDefault();
+		private final char[] timestamp = new char[32];
+		private long cachedSecond = Long.MIN_VALUE;
+		private String cachedPrefix;
+		private String cachedOffset;
+
+		private Renderer() {
+		}
+
+		/**
+		 * Sets the value of a slot, escaping the XML special characters.
+		 * @param slot the slot
+		 * @param value the value, or null to use the value of the template
+		 * @return this renderer
+		 */
+		public Renderer set(Slot slot, CharSequence value) {
+			int s = slot.ordinal();
+			if (value == null) {
+				values[s] = null;
+				return this;
+			}
+			if (values[s] == null) {
+				values[s] = new byte[64];
+			}
+			int n = 0;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				// Values are identifiers and timestamps, so the common case is one byte per character
+				if (c < 0x80 && c != '&' && c != '<' && c != '>') {
+					values[s] = ensure(values[s], n + 1);
+					values[s][n++] = (byte) c;
+				} else {
+					int chars = Character.isHighSurrogate(c) && i + 1 < value.length() ? 2 : 1;
+					byte[] encoded = escape(value.subSequence(i, i + chars).toString());
+					i += chars - 1;
+					values[s] = ensure(values[s], n + encoded.length);
+					System.arraycopy(encoded, 0, values[s], n, encoded.length);
+					n += encoded.length;
+				}
+			}
+			lengths[s] = n;
+			return this;
+		}
+
+		/**
+		 * Sets a timestamp slot to a time, formatted like JAXB formats an xsd:dateTime (with milliseconds and the
+		 * offset of the default time zone).
+		 * @param slot the slot, e.g. {@link Slot#DANNELSESTIDSPUNKT}
+		 * @param epochMillis the time
+		 * @return this renderer
+		 */
+		public Renderer setTimestamp(Slot slot, long epochMillis) {
+			long second = Math.floorDiv(epochMillis, 1000);
+			if (second != cachedSecond) {
+				// The date, time and offset only change once a second
+				OffsetDateTime time = OffsetDateTime.ofInstant(Instant.ofEpochSecond(second), zone);
+				cachedPrefix = time.format(secondFormat);
+				cachedOffset = time.getOffset().getTotalSeconds() == 0 ? "Z" : time.getOffset().getId();
+				cachedSecond = second;
+			}
+			int n = cachedPrefix.length();
+			cachedPrefix.getChars(0, n, timestamp, 0);
+			int millis = (int) Math.floorMod(epochMillis, 1000L);
+			timestamp[n++] = '.';
+			timestamp[n++] = (char) ('0' + millis / 100);
+			timestamp[n++] = (char) ('0' + millis / 10 % 10);
+			timestamp[n++] = (char) ('0' + millis % 10);
+			cachedOffset.getChars(0, cachedOffset.length(), timestamp, n);
+			n += cachedOffset.length();
+			return set(slot, CharBuffer.wrap(timestamp, 0, n));
+		}
+
+		/**
+		 * @return a new message with the values set so far
+		 */
+		public byte[] render() {
+			int size = template.length;
+			for (int i = 0; i < starts.length; i++) {
+				int s = slots[i].ordinal();
+				if (values[s] != null) {
+					size += lengths[s] - (ends[i] - starts[i]);
+				}
+			}
+			byte[] besked = new byte[size];
+			int from = 0;
+			int to = 0;
+			for (int i = 0; i < starts.length; i++) {
+				int s = slots[i].ordinal();
+				if (values[s] == null) {
+					continue;
+				}
+				System.arraycopy(template, from, besked, to, starts[i] - from);
+				to += starts[i] - from;
+				System.arraycopy(values[s], 0, besked, to, lengths[s]);
+				to += lengths[s];
+				from = ends[i];
+			}
+			System.arraycopy(template, from, besked, to, template.length - from);
+			return besked;
+		}
+
+		private byte[] ensure(byte[] b, int size) {
+			if (size > MAX_VALUE_BYTES) {
+				throw new IllegalArgumentException("Slot values are limited to "+MAX_VALUE_BYTES+" bytes");
+			}
+			return size <= b.length ? b : Arrays.copyOf(b, Math.max(size, b.length * 2));
+		}
+
+		private byte[] escape(String c) {
+			switch (c) {
+			case "&":
+				return "&amp;".getBytes(StandardCharsets.US_ASCII);
+			case "<":
+				return "&lt;".getBytes(StandardCharsets.US_ASCII);
+			case ">":
+				return "&gt;".getBytes(StandardCharsets.US_ASCII);
+			default:
+				return c.getBytes(StandardCharsets.UTF_8);
+			}
+		}
+	}
+}
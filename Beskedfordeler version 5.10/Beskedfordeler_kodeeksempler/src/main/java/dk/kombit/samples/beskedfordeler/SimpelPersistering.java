@@ -7,7 +7,8 @@ import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
 import dk.kombit.samples.SamplesHelper;
 
 /**
- * Simple class for persisting an XML document into a file
+ * Simple class for persisting an XML document into a file.
+ * Opens the file for every message, see {@link MessageJournal} for storing messages at a high rate.
  */
 public class SimpelPersistering {
     /**
@@ -19,7 +20,9 @@ public class SimpelPersistering {
     public static void persistMessage(HaendelsesbeskedType haendelsesbesked, String filename) throws Exception {
         File file = new File(filename);
         boolean append = true;
-        SamplesHelper.marshal(haendelsesbesked, new FileWriter(file, append), SamplesHelper.HAENDELSESBESKED_QNAME);
+        try (FileWriter writer = new FileWriter(file, append)) {
+            SamplesHelper.marshal(haendelsesbesked, writer, SamplesHelper.HAENDELSESBESKED_QNAME);
+        }
     }
 
 }
@@ -0,0 +1,216 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kombit.samples.SamplesHelper;
+
+/**
+ * Command line tool for finding journaled messages using the {@link MessageIndex} of the journal.
+ * The index is opened read-only, so it can be used while AfhentBesked is writing to the journal.
+ * Files written by {@link SimpelPersistering} can be searched with -arkiv, they are scanned with a {@link ConcatenatedXmlReader}.
+ */
+public class SoegBesked {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SoegBesked.class);
+
+	private static String journalDirectory = "haendelsesbesked-afhent";
+	private static String journalName = "afhent";
+	private static MessageIndex.Key key;
+	private static String value;
+	private static String from;
+	private static String to;
+	private static boolean printMessages = false;
+	private static String archiveFile;
+
+	public static void main(String[] args) throws Exception {
+		if (!parseArguments(args)) {
+			LOGGER.error("main: Exiting.");
+			return;
+		}
+
+		if (archiveFile != null) {
+			searchArchive();
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		try (MessageIndex index = new MessageIndex(new File(journalDirectory), journalName, true)) {
+			long opened = System.currentTimeMillis();
+			List<Long> locations = value != null ? index.lookup(key, value) : index.range(key, from, to);
+			long searched = System.currentTimeMillis();
+
+			for (long location : locations) {
+				if (printMessages) {
+					byte[] besked = index.read(location);
+					if (besked == null) {
+						System.out.println("Message at "+describe(location)+" could not be read");
+					} else {
+						System.out.println(SamplesHelper.prettyPrintXML(new String(besked, StandardCharsets.UTF_8)));
+					}
+				} else {
+					HaendelsesbeskedEnvelope envelope = readEnvelope(index, location);
+					System.out.println(describe(location)+"\t"+(envelope != null ? envelope : "(could not be read)"));
+				}
+			}
+			System.out.println(locations.size()+" messages found in "+(searched-opened)+" ms (index opened in "+(opened-start)+" ms)");
+		}
+	}
+
+	private static void searchArchive() throws Exception {
+		long start = System.currentTimeMillis();
+		try (ConcatenatedXmlReader reader = new ConcatenatedXmlReader(new File(archiveFile))) {
+			long found;
+			if (printMessages) {
+				found = reader.documents(SoegBesked::matches)
+						.peek(besked -> System.out.println(SamplesHelper.prettyPrintXML(new String(besked, StandardCharsets.UTF_8)))).count();
+			} else {
+				found = reader.envelopes().filter(SoegBesked::matches).peek(System.out::println).count();
+			}
+			System.out.println(found+" messages found in "+(System.currentTimeMillis()-start)+" ms"
+					+(reader.getSkipped() > 0 ? " ("+reader.getSkipped()+" documents could not be read)" : ""));
+		}
+	}
+
+	private static boolean matches(HaendelsesbeskedEnvelope envelope) {
+		switch (key) {
+		case BESKED_ID:
+			return value.equals(envelope.getBeskedId());
+		case BESKEDTYPE:
+			return value.equals(envelope.getBeskedtype());
+		case OBJEKT_ID:
+			for (HaendelsesbeskedEnvelope.RelateretObjekt objekt : envelope.getRelateretObjekt()) {
+				if (value.equals(objekt.getObjektId())) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private static HaendelsesbeskedEnvelope readEnvelope(MessageIndex index, long location) {
+		try {
+			byte[] besked = index.read(location);
+			return besked != null ? HaendelsesbeskedEnvelope.peek(besked) : null;
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception reading message at "+describe(location),e);
+			return null;
+		}
+	}
+
+	private static String describe(long location) {
+		return MessageJournal.segmentFile(new File(journalDirectory), journalName, MessageJournal.segmentOf(location)).getName()
+				+"@"+MessageJournal.offsetOf(location);
+	}
+
+	private static boolean isDateTime(String dateTime) {
+		try {
+			DatatypeFactory.newInstance().newXMLGregorianCalendar(dateTime.trim());
+			return true;
+		} catch (DatatypeConfigurationException | IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static boolean parseArguments(String[] args) {
+		boolean parseOk = true;
+		for (int i=0; i < args.length; i++) {
+			if ("-journal".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					journalDirectory = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-name".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					journalName = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-beskedid".equals(args[i]) || "-beskedtype".equals(args[i]) || "-objektid".equals(args[i])) {
+				if (i < args.length-1) {
+					key = "-beskedid".equals(args[i]) ? MessageIndex.Key.BESKED_ID
+							: "-beskedtype".equals(args[i]) ? MessageIndex.Key.BESKEDTYPE : MessageIndex.Key.OBJEKT_ID;
+					i++;
+					value = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-fra".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					from = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-til".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					to = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-arkiv".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					archiveFile = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-print".equals(args[i])) {
+				printMessages = true;
+			} else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+				System.out.println("usage: \n"+
+								   "-h | -help: this help message\n"+
+								   "-journal <dir>: search the journal in <dir> (default: "+journalDirectory+")\n"+
+								   "-name <name>: name of the journal segment files (default: "+journalName+")\n"+
+								   "-beskedid <uuid>: find the message with BeskedId <uuid>\n"+
+								   "-beskedtype <uuid>: find messages with Beskedtype <uuid>\n"+
+								   "-objektid <id>: find messages with a RelateretObjekt with ObjektId <id>, e.g. urn:oio:cpr-nr:nnnnnnnnnn\n"+
+								   "-fra <dateTime>: find messages with Dannelsestidspunkt at or after <dateTime>, e.g. 2018-01-31T12:00:00+01:00\n"+
+								   "-til <dateTime>: find messages with Dannelsestidspunkt before <dateTime>\n"+
+								   "-print: print the messages found instead of a summary\n"+
+								   "-arkiv <file>: scan <file> with messages appended one after the other instead of using a journal (not with -fra/-til)");
+				System.exit(0);
+			}
+		}
+		if (key != null && (from != null || to != null)) {
+			LOGGER.error("Use either -beskedid, -beskedtype or -objektid, or -fra/-til");
+			parseOk = false;
+		} else if (key == null && from == null && to == null) {
+			LOGGER.error("Nothing to search for, use -h for help");
+			parseOk = false;
+		} else if (key == null) {
+			key = MessageIndex.Key.DANNELSESTIDSPUNKT;
+		}
+		if (from != null && !isDateTime(from)) {
+			LOGGER.error("-fra must be an xsd:dateTime, e.g. 2018-01-31T12:00:00+01:00, not "+from);
+			parseOk = false;
+		}
+		if (to != null && !isDateTime(to)) {
+			LOGGER.error("-til must be an xsd:dateTime, e.g. 2018-01-31T12:00:00+01:00, not "+to);
+			parseOk = false;
+		}
+		if (archiveFile != null && key == MessageIndex.Key.DANNELSESTIDSPUNKT) {
+			LOGGER.error("-fra/-til cannot be used with -arkiv");
+			parseOk = false;
+		}
+		return parseOk;
+	}
+}
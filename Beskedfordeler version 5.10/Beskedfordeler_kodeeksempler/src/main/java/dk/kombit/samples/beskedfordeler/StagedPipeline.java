@@ -0,0 +1,247 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipeline of stages, each with its own worker threads and a bounded hand-off queue in front of it.
+ *
+ * Items submitted to the pipeline pass through the stages in the order they were added. A stage may send an
+ * item straight to the last stage (e.g. a message that only needs to be acknowledged), and an item whose step
+ * throws an exception is given to the {@link ErrorHandler} and then also sent to the last stage. The last stage
+ * always sees every item exactly once. Full queues block the previous stage, so a slow stage slows down the
+ * producer instead of letting work pile up in memory.
+ *
+ * @param <T> the type of the items passed through the pipeline
+ */
+public class StagedPipeline<T> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StagedPipeline.class);
+
+	private static final long POLL_MSECS = 100;
+
+	/**
+	 * The work done by a stage on one item.
+	 */
+	public interface Step<T> {
+		/**
+		 * @param item the item to process
+		 * @return true to pass item on to the next stage, false to send it straight to the last stage
+		 * @throws Exception thrown if item could not be processed, item is then given to the {@link ErrorHandler}
+		 */
+		boolean process(T item) throws Exception;
+	}
+
+	/**
+	 * Called when a step throws an exception.
+	 */
+	public interface ErrorHandler<T> {
+		void handleError(T item, String stageName, Exception e);
+	}
+
+	private class Stage implements Runnable {
+		final String name;
+		final int workers;
+		final Step<T> step;
+		final BlockingQueue<T> queue;
+		Stage next;
+
+		Stage(String name, int workers, Step<T> step) {
+			this.name = name;
+			this.workers = workers;
+			this.step = step;
+			this.queue = new ArrayBlockingQueue<T>(queueCapacity);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				T item;
+				try {
+					item = queue.poll(POLL_MSECS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (item != null) {
+					process(item);
+				}
+			}
+		}
+
+		private void process(T item) {
+			boolean forward;
+			try {
+				forward = step.process(item);
+			} catch (Exception e) {
+				errorHandler.handleError(item, name, e);
+				forward = false;
+			}
+			if (next == null) {
+				itemCompleted();
+				return;
+			}
+			Stage target = forward ? next : lastStage;
+			try {
+				target.queue.put(item);
+			} catch (InterruptedException e) {
+				LOGGER.warn("Interrupted while handing item from stage "+name+" to stage "+target.name+", dropping it");
+				itemCompleted();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private final int queueCapacity;
+	private final ErrorHandler<T> errorHandler;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private Stage lastStage;
+
+	private volatile boolean running = false;
+	private volatile boolean accepting = false;
+	private final AtomicLong inFlight = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final Object completionLock = new Object();
+
+	/**
+	 * @param queueCapacity the number of items that can wait in front of each stage
+	 * @param errorHandler called when a step throws an exception
+	 */
+	public StagedPipeline(int queueCapacity, ErrorHandler<T> errorHandler) {
+		this.queueCapacity = queueCapacity;
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * Adds a stage after the stages already added. Must be called before {@link #start()}.
+	 * @param name name of the stage, used for naming its threads
+	 * @param workers number of threads processing items in this stage
+	 * @param step the work done on each item
+	 * @return this pipeline
+	 */
+	public StagedPipeline<T> addStage(String name, int workers, Step<T> step) {
+		if (running) {
+			throw new IllegalStateException("Cannot add stage "+name+" to a running pipeline");
+		}
+		Stage stage = new Stage(name, Math.max(1, workers), step);
+		if (lastStage != null) {
+			lastStage.next = stage;
+		}
+		stages.add(stage);
+		lastStage = stage;
+		return this;
+	}
+
+	/**
+	 * Starts the worker threads of all stages.
+	 */
+	public synchronized void start() {
+		if (stages.isEmpty()) {
+			throw new IllegalStateException("Pipeline has no stages");
+		}
+		running = true;
+		accepting = true;
+		for (Stage stage : stages) {
+			for (int i = 0; i < stage.workers; i++) {
+				Thread t = new Thread(stage, stage.name+"-"+i);
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			LOGGER.debug("Started stage "+stage.name+" with "+stage.workers+" workers");
+		}
+	}
+
+	/**
+	 * Hands an item to the first stage, waiting for room in its queue if necessary.
+	 * @param item the item to process
+	 * @throws InterruptedException thrown if interrupted while waiting for room
+	 */
+	public void submit(T item) throws InterruptedException {
+		if (!accepting) {
+			throw new IllegalStateException("Pipeline is not accepting items");
+		}
+		inFlight.incrementAndGet();
+		try {
+			stages.get(0).queue.put(item);
+		} catch (InterruptedException e) {
+			itemCompleted();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of items that have passed the last stage
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the number of items submitted that have not yet passed the last stage
+	 */
+	public long getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Waits until at least count items have passed the last stage.
+	 * @param count the number of items to wait for
+	 * @param timeoutMsecs the maximum time to wait
+	 * @return true if count items have completed, false if the timeout elapsed
+	 * @throws InterruptedException thrown if interrupted while waiting
+	 */
+	public boolean awaitCompleted(long count, long timeoutMsecs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMsecs;
+		synchronized (completionLock) {
+			while (completed.get() < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				completionLock.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting items, waits for the items in the pipeline to pass the last stage, and stops the workers.
+	 * @param timeoutMsecs the maximum time to wait for items in the pipeline
+	 * @return true if all items completed, false if some were abandoned when the timeout elapsed
+	 * @throws InterruptedException thrown if interrupted while waiting
+	 */
+	public synchronized boolean shutdown(long timeoutMsecs) throws InterruptedException {
+		accepting = false;
+		long deadline = System.currentTimeMillis() + timeoutMsecs;
+		synchronized (completionLock) {
+			while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+				completionLock.wait(Math.max(1, Math.min(POLL_MSECS, deadline - System.currentTimeMillis())));
+			}
+		}
+		boolean drained = inFlight.get() == 0;
+		if (!drained) {
+			LOGGER.warn("Stopping pipeline with "+inFlight.get()+" items still in progress");
+		}
+		running = false;
+		for (Thread t : threads) {
+			t.join(POLL_MSECS * 10);
+		}
+		threads.clear();
+		return drained;
+	}
+
+	private void itemCompleted() {
+		inFlight.decrementAndGet();
+		completed.incrementAndGet();
+		synchronized (completionLock) {
+			completionLock.notifyAll();
+		}
+	}
+}
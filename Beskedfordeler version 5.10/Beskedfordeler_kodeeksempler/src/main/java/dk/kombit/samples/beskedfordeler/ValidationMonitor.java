@@ -0,0 +1,230 @@
+package dk.kombit.samples.beskedfordeler;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import dk.kombit.samples.SchemaValidator;
+
+/**
+ * Checks received messages against the Beskedkuvert schema to monitor the quality of what producers send, without
+ * validating every message on the path that handles it.
+ *
+ * The mode is given as a string:
+ * <ul>
+ * <li>"off": no messages are validated</li>
+ * <li>"sample:&lt;n&gt;": one in n messages is validated</li>
+ * <li>"sample:&lt;n&gt;:beskedtype": one in n messages of each Beskedtype is validated, so rare Beskedtypes are
+ * checked as well</li>
+ * <li>"async": all messages are validated</li>
+ * </ul>
+ * Messages are validated on a low priority background thread, so validating never delays the thread handling the
+ * message; messages arriving while {@value #ASYNC_QUEUE_SIZE} are waiting are not validated.
+ * Violations are not sent back to the producer; they are logged with the BeskedId and Beskedtype of the message,
+ * and counted.
+ */
+public class ValidationMonitor implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ValidationMonitor.class);
+
+	private static final int ASYNC_QUEUE_SIZE = 10000;
+	private static final long CLOSE_TIMEOUT_MSECS = 5000;
+
+	/**
+	 * When messages are validated.
+	 */
+	public enum Mode { OFF, SAMPLED, ASYNC }
+
+	private final Mode mode;
+	private final int sampleInterval;
+	private final boolean perBeskedtype;
+	private final SchemaValidator validator;
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong seen = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> seenPerBeskedtype = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong validated = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param mode when messages are validated
+	 * @param sampleInterval validate one in this many messages when sampling
+	 * @param perBeskedtype count messages per Beskedtype when sampling
+	 * @throws SAXException thrown if the schema cannot be compiled
+	 */
+	public ValidationMonitor(Mode mode, int sampleInterval, boolean perBeskedtype) throws SAXException {
+		this.mode = mode;
+		this.sampleInterval = Math.max(1, sampleInterval);
+		this.perBeskedtype = perBeskedtype;
+		this.validator = mode != Mode.OFF ? SchemaValidator.beskedkuvert() : null;
+		if (mode != Mode.OFF) {
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE), r -> {
+				Thread t = new Thread(r, "validate");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}, (r, e) -> dropped.incrementAndGet());
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Creates a monitor from a mode string, see the class description.
+	 * @param spec "off", "sample:&lt;n&gt;", "sample:&lt;n&gt;:beskedtype" or "async"
+	 * @return the monitor
+	 * @throws IllegalArgumentException thrown if spec is not a valid mode
+	 * @throws SAXException thrown if the schema cannot be compiled
+	 */
+	public static ValidationMonitor parse(String spec) throws SAXException {
+		String[] parts = spec.trim().toLowerCase().split(":");
+		if (parts.length == 1 && "off".equals(parts[0])) {
+			return new ValidationMonitor(Mode.OFF, 1, false);
+		}
+		if (parts.length == 1 && "async".equals(parts[0])) {
+			return new ValidationMonitor(Mode.ASYNC, 1, false);
+		}
+		if ((parts.length == 2 || parts.length == 3 && "beskedtype".equals(parts[2])) && "sample".equals(parts[0])) {
+			try {
+				return new ValidationMonitor(Mode.SAMPLED, Integer.parseInt(parts[1]), parts.length == 3);
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+		}
+		throw new IllegalArgumentException("Unknown validation mode: "+spec);
+	}
+
+	/**
+	 * @return the mode of this monitor
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Validates a received message in the background if it is selected by the mode. Call it when the message has been
+	 * handled (and acknowledged), it does not change how the message is handled.
+	 * @param envelope the envelope of the message, or null to read it from the message when needed
+	 * @param besked the message
+	 */
+	public void inspect(HaendelsesbeskedEnvelope envelope, byte[] besked) {
+		switch (mode) {
+		case SAMPLED:
+			if (perBeskedtype && envelope == null) {
+				// Reading the Beskedtype is left to the background thread as well
+				executor.execute(() -> {
+					HaendelsesbeskedEnvelope peeked = peek(besked);
+					if (sampled(peeked != null ? peeked.getBeskedtype() : null)) {
+						validate(peeked, besked);
+					}
+				});
+			} else if (sampled(perBeskedtype ? envelope.getBeskedtype() : null)) {
+				final HaendelsesbeskedEnvelope e = envelope;
+				executor.execute(() -> validate(e, besked));
+			}
+			break;
+		case ASYNC:
+			final HaendelsesbeskedEnvelope e = envelope;
+			executor.execute(() -> validate(e, besked));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return the number of messages validated
+	 */
+	public long getValidated() {
+		return validated.get();
+	}
+
+	/**
+	 * @return the number of messages found invalid
+	 */
+	public long getInvalid() {
+		return invalid.get();
+	}
+
+	/**
+	 * @return the number of messages not validated because the background thread was behind
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops the background thread, letting it validate the messages already waiting for a while.
+	 */
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(CLOSE_TIMEOUT_MSECS, TimeUnit.MILLISECONDS)) {
+					dropped.addAndGet(executor.shutdownNow().size());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		LOGGER.info("Validation: "+this);
+	}
+
+	@Override
+	public String toString() {
+		return "mode "+mode+(mode == Mode.SAMPLED ? " 1 in "+sampleInterval+(perBeskedtype ? " per beskedtype" : "") : "")+", "
+				+validated.get()+" validated, "+invalid.get()+" invalid"+(mode != Mode.OFF ? ", "+dropped.get()+" not validated" : "");
+	}
+
+	private boolean sampled(String beskedtype) {
+		AtomicLong counter = seen;
+		if (beskedtype != null) {
+			counter = seenPerBeskedtype.get(beskedtype);
+			if (counter == null) {
+				AtomicLong created = new AtomicLong();
+				counter = seenPerBeskedtype.putIfAbsent(beskedtype, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+		}
+		// The first message (of each Beskedtype) is always validated
+		return counter.getAndIncrement() % sampleInterval == 0;
+	}
+
+	private void validate(HaendelsesbeskedEnvelope envelope, byte[] besked) {
+		try {
+			SchemaValidator.Result result = validator.validate(besked);
+			validated.incrementAndGet();
+			if (!result.isValid()) {
+				invalid.incrementAndGet();
+				if (envelope == null) {
+					envelope = peek(besked);
+				}
+				LOGGER.warn("Message with beskedId "+(envelope != null ? envelope.getBeskedId() : null)+" and beskedtype "
+						+(envelope != null ? envelope.getBeskedtype() : null)+" is "+result);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("Caught exception validating message", e);
+		}
+	}
+
+	private static HaendelsesbeskedEnvelope peek(byte[] besked) {
+		try {
+			return HaendelsesbeskedEnvelope.peek(besked);
+		} catch (XMLStreamException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package dk.kombit.samples.beskedfordeler.amqp;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Collects acknowledgements for the messages received on one channel and sends them to the broker in batches.
+ *
+ * Every delivery tag must be registered when the message is received. Messages may complete in any order, and
+ * when the oldest unsettled messages have all completed they are acknowledged together with a single
+ * basicAck(tag, multiple=true). This happens when batchSize messages are waiting, or at the latest after
+ * flushIntervalMsecs, where completed messages still behind an unfinished one are acknowledged one by one. With a
+ * batchSize of 1 a completed message is acknowledged at once unless an older message is still in progress, and then
+ * when that message completes or is rejected, or at the latest after flushIntervalMsecs.
+ * NACKs are never batched, they are sent at once with multiple=false, so a NACK only ever affects its own message.
+ * An optional {@link Flushable} is flushed before each acknowledgement, so state written while handling the
+ * messages is durable before the broker forgets them.
+ */
+public class AckCoalescer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AckCoalescer.class);
+
+	private final Channel channel;
+	private final int batchSize;
+	private Flushable beforeAck;
+
+	// Unsettled delivery tags in ascending order, mapped to whether the message has completed and can be acknowledged
+	private final TreeMap<Long, Boolean> unsettled = new TreeMap<Long, Boolean>();
+	private int pendingAcks = 0;
+
+	private long messagesAcked = 0;
+	private long acksSent = 0;
+
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * @param channel the channel the messages are received on
+	 * @param batchSize the number of completed messages that triggers an acknowledgement, 1 to acknowledge each message
+	 * as soon as the messages before it are settled
+	 * @param flushIntervalMsecs the maximum time a completed message waits for its acknowledgement
+	 */
+	public AckCoalescer(Channel channel, int batchSize, long flushIntervalMsecs) {
+		this.channel = channel;
+		this.batchSize = Math.max(1, batchSize);
+		// Also needed with a batch size of 1, for completed messages waiting behind one that is still in progress
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ack-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = Math.max(1, flushIntervalMsecs);
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (Exception e) {
+				LOGGER.warn("Caught exception flushing acknowledgements",e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param beforeAck flushed before acknowledgements are sent, or null
+	 */
+	public synchronized void setBeforeAck(Flushable beforeAck) {
+		this.beforeAck = beforeAck;
+	}
+
+	/**
+	 * Registers a received message. Must be called in delivery order, before the message can complete.
+	 * @param deliveryTag the delivery tag of the message
+	 */
+	public synchronized void register(long deliveryTag) {
+		unsettled.put(deliveryTag, Boolean.FALSE);
+	}
+
+	/**
+	 * Marks a message as completed, the acknowledgement is sent with the next batch.
+	 * @param deliveryTag the delivery tag of the message
+	 * @throws IOException thrown if sending acknowledgements fails
+	 */
+	public synchronized void ack(long deliveryTag) throws IOException {
+		if (unsettled.put(deliveryTag, Boolean.TRUE) == null) {
+			LOGGER.warn("ack(): Delivery tag "+deliveryTag+" was not registered, acknowledging it alone");
+			unsettled.remove(deliveryTag);
+			if (beforeAck != null) {
+				beforeAck.flush();
+			}
+			send(deliveryTag, false, 1);
+			return;
+		}
+		pendingAcks++;
+		if (pendingAcks >= batchSize) {
+			ackCompletedRun();
+		}
+	}
+
+	/**
+	 * Rejects a message at once.
+	 * @param deliveryTag the delivery tag of the message
+	 * @param requeue true if the broker should deliver the message again
+	 * @throws IOException thrown if sending the NACK fails
+	 */
+	public synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+		Boolean completed = unsettled.remove(deliveryTag);
+		if (Boolean.TRUE.equals(completed)) {
+			pendingAcks--;
+		}
+		channel.basicNack(deliveryTag, false, requeue);
+		// Completed messages waiting behind the rejected one can be acknowledged now
+		if (pendingAcks >= batchSize) {
+			ackCompletedRun();
+		}
+	}
+
+	/**
+	 * Sends acknowledgements for all completed messages.
+	 * @throws IOException thrown if sending acknowledgements fails
+	 */
+	public synchronized void flush() throws IOException {
+		if (pendingAcks == 0 || !channel.isOpen()) {
+			return;
+		}
+		ackCompletedRun();
+
+		// The rest are behind a message still in progress, so they cannot be covered by a multiple ack
+		List<Long> completed = new ArrayList<Long>();
+		for (Map.Entry<Long, Boolean> e : unsettled.entrySet()) {
+			if (e.getValue()) {
+				completed.add(e.getKey());
+			}
+		}
+		if (!completed.isEmpty() && beforeAck != null) {
+			beforeAck.flush();
+		}
+		for (Long deliveryTag : completed) {
+			unsettled.remove(deliveryTag);
+			pendingAcks--;
+			send(deliveryTag, false, 1);
+		}
+	}
+
+	/**
+	 * Flushes the completed messages and stops the timer. Messages not completed are left unacknowledged.
+	 */
+	public void close() {
+		// Not interrupted, an interrupt while beforeAck forces the journal to disk would close the journal's segment
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			flush();
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception flushing acknowledgements",e);
+		}
+		LOGGER.debug("Acknowledged "+messagesAcked+" messages with "+acksSent+" acknowledgements");
+	}
+
+	private void ackCompletedRun() throws IOException {
+		if (unsettled.isEmpty() || !unsettled.firstEntry().getValue()) {
+			return;
+		}
+		if (beforeAck != null) {
+			beforeAck.flush();
+		}
+		long through = -1;
+		int count = 0;
+		Iterator<Map.Entry<Long, Boolean>> it = unsettled.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Boolean> e = it.next();
+			if (!e.getValue()) {
+				break;
+			}
+			through = e.getKey();
+			count++;
+		}
+		if (count == 0) {
+			return;
+		}
+		unsettled.headMap(through, true).clear();
+		pendingAcks -= count;
+		send(through, count > 1, count);
+	}
+
+	private void send(long deliveryTag, boolean multiple, int count) throws IOException {
+		channel.basicAck(deliveryTag, multiple);
+		acksSent++;
+		messagesAcked += count;
+	}
+}
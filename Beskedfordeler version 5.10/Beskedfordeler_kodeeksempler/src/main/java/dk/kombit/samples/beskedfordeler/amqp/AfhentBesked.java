@@ -1,15 +1,17 @@
 package dk.kombit.samples.beskedfordeler.amqp;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
 
@@ -17,42 +19,177 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
 
+import dk.kombit.samples.JaxbCodec;
 import dk.kombit.samples.SamplesHelper;
 import dk.kombit.samples.TokenManager;
-import dk.kombit.samples.beskedfordeler.SimpelPersistering;
+import dk.kombit.samples.beskedfordeler.BeskedIdClaims;
+import dk.kombit.samples.beskedfordeler.BeskedIdDedup;
+import dk.kombit.samples.beskedfordeler.DedupIndex;
+import dk.kombit.samples.beskedfordeler.HaendelsesbeskedEnvelope;
+import dk.kombit.samples.beskedfordeler.MappedBeskedIdDedup;
+import dk.kombit.samples.beskedfordeler.MessageIndex;
+import dk.kombit.samples.beskedfordeler.MessageJournal;
+import dk.kombit.samples.beskedfordeler.StagedPipeline;
+import dk.kombit.samples.beskedfordeler.ValidationMonitor;
 
 /**
  * Sample class illustrating how to obtain a security token and fetch a message from a queue in Beskedfordeler.
  * You must set up the {@link SamplesHelper} class with keystore and truststore, CVR numbers, certificates
  * and hostname/portnumber. Then you must set dueslagId below to the queue to connect to.
+ * Messages are pushed from the queue into a {@link StagedPipeline} (decode, dedup, handle, persist, ack),
+ * so several messages are in progress at once and each is acknowledged with its own delivery tag.
+ * When the connection is lost, the {@link RecoveryManager} opens a new channel and consumes from all queues again.
  */
 public class AfhentBesked {
 	private static final Logger LOGGER = LoggerFactory.getLogger(AfhentBesked.class);	
     
     // Find Pigeonhole Identity UUID (may be found in beskedfordeler UI)
     private static String dueslagId = "42e4601f-9fe0-411e-b7a9-1e4581474e18";
+    // Queues to consume from, all on the same channel (only dueslagId if empty)
+    private static List<String> dueslagIds = new ArrayList<String>();
     
-    private static final int REPLY_TIMEOUT_MSECS = 15000;
+    private static final int WAIT_MSECS = 15000;
+    // How often the channel is checked, so a lost connection is reopened without waiting for WAIT_MSECS
+    private static final int CHECK_MSECS = 1000;
+    private static final int SHUTDOWN_TIMEOUT_MSECS = 30000;
 
-    private static final String INBOUND_MESSAGE_STORE_FILENAME = "haendelsesbesked-afhent.xml";
+    private static final String INBOUND_JOURNAL_DIRECTORY = "haendelsesbesked-afhent";
+    private static final String INBOUND_JOURNAL_NAME = "afhent";
     
-    private static String outputFile = INBOUND_MESSAGE_STORE_FILENAME;
-    private static int numberOfMessages = 3;
+    private static String outputDirectory = INBOUND_JOURNAL_DIRECTORY;
+    private static MessageJournal journal;
+    private static MessageIndex index;
+    // Stop after this many messages, 0 means keep running until stopped
+    private static int numberOfMessages = 0;
+
+    // Threads in the pipeline stages, and the number of messages that can wait in front of each stage
+    private static int decodeWorkers = 2;
+    private static int handleWorkers = 4;
+    private static int persistWorkers = 1;
+    private static int queueSize = 100;
+
+    // Unacknowledged messages the broker may send ahead (0 means no limit), and how acknowledgements are batched
+    private static int prefetchCount = 100;
+    private static int ackBatchSize = 20;
+    private static int ackIntervalMsecs = 200;
     
     private static String token;
     private static String decodedToken;
     private static TokenManager tokenManager;
     private static SamplesHelper samplesHelper;
-    private static Connection conn;
     private static Channel channel;
-    private static QueueingConsumer consumer;
+    private static List<String> consumerTags = new ArrayList<String>();
+    private static RecoveryManager recovery;
+    private static AckCoalescer acks;
+    private static StagedPipeline<Modtagelse> pipeline;
+    private static volatile boolean stopRequested = false;
+
+
+    // BeskedIds already handled, remembered for a limited time so memory use stays bounded
+    private static int dedupCapacity = 1000000;
+    private static int dedupRetentionHours = 24;
+    // File for keeping the handled beskedIds across restarts, and how often it is forced to disk (0 means before each acknowledgement)
+    private static String dedupFile;
+    private static int dedupFlushMsecs = 1000;
+    private static DedupIndex processedMessageIds;
+    // BeskedIds of the messages in the pipeline, so two copies of a message are not handled at the same time
+    private static BeskedIdClaims claims;
+
+    // Beskedtype UUIDs to handle, messages of other types are acknowledged without processing (all are handled if empty)
+    private static Set<String> beskedtyper = new HashSet<String>();
+
+    // Schema validation of handled messages for quality monitoring: "off", "sample:<n>", "sample:<n>:beskedtype" or "async"
+    private static String validationMode = "off";
+    private static ValidationMonitor validation;
+
+    /**
+     * A message received from the queue, on its way through the pipeline.
+     * It is acknowledged unless one of the stages decides otherwise.
+     */
+    private static class Modtagelse {
+    	final Channel channel;
+    	final AckCoalescer acks;
+    	final String queue;
+    	final long deliveryTag;
+    	final String transactionId;
+    	final byte[] body;
+    	HaendelsesbeskedEnvelope envelope;
+    	String beskedId;
+    	volatile boolean ack = true;
+    	volatile boolean claimed = false;
+    	volatile boolean persisted = false;
+    	volatile boolean requeue = false;
+    	// Waiting for another copy in the pipeline, and settled when that copy is instead of by the ack stage
+    	volatile boolean parked = false;
+
+    	Modtagelse(Channel channel, AckCoalescer acks, String queue, long deliveryTag, String transactionId, byte[] body) {
+    		this.channel = channel;
+    		this.acks = acks;
+    		this.queue = queue;
+    		this.deliveryTag = deliveryTag;
+    		this.transactionId = transactionId;
+    		this.body = body;
+    	}
+
+    	void nack(boolean requeue) {
+    		this.ack = false;
+    		this.requeue = requeue;
+    	}
 
-    private static ArrayList<String> processedMessageIds = new ArrayList<String>();
+    	@Override
+    	public String toString() {
+    		return "transaction id = "+transactionId+", delivery tag "+deliveryTag;
+    	}
+    }
+
+    /**
+     * Hands each delivery to the pipeline. Runs on the connection's consumer thread, and blocks when the
+     * pipeline is full, so no more messages are taken from the connection until there is room again.
+     */
+    private static class DueslagConsumer extends DefaultConsumer {
+    	private final AckCoalescer acks;
+    	private final String queue;
+
+    	DueslagConsumer(Channel channel, AckCoalescer acks, String queue) {
+    		super(channel);
+    		this.acks = acks;
+    		this.queue = queue;
+    	}
+
+    	@Override
+    	public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+    		String transactionId = null;
+    		if (properties == null) {
+    			LOGGER.warn("handleDelivery(): Received reply on queue "+queue+" with no properties");
+    		} else {
+    			transactionId = properties.getMessageId();
+    		}
+    		// Registered before any later message can complete, so a multiple ack never covers a message still in progress
+    		acks.register(envelope.getDeliveryTag());
+    		try {
+    			pipeline.submit(new Modtagelse(getChannel(), acks, queue, envelope.getDeliveryTag(), transactionId, body));
+    		} catch (IllegalStateException e) {
+    			// Shutting down, the unacknowledged message is delivered again when the channel closes
+    			LOGGER.debug("handleDelivery(): Not accepting message with delivery tag "+envelope.getDeliveryTag()+" while shutting down");
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new IOException(e);
+    		}
+    	}
+
+    	@Override
+    	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+    		if (!sig.isInitiatedByApplication()) {
+    			LOGGER.warn("handleShutdownSignal(): Consumer on queue "+queue+" was shut down: "+sig.getMessage());
+    		}
+    	}
+    }
 
     public static void main(String[] args) throws Exception {
 
@@ -63,11 +200,20 @@ public class AfhentBesked {
     	
     	LOGGER.info("main: Startup time: "+(new Date().toString()));
     	
-		LOGGER.debug("dueslag = "+dueslagId);
+    	if (dueslagIds.isEmpty()) {
+    		dueslagIds.add(dueslagId);
+    	}
+		LOGGER.debug("dueslag = "+dueslagIds);
 
     	LOGGER.debug("main: Setting up token manager...");
     	try {
 			tokenManager = new TokenManager(SamplesHelper.stsRESTUrl);
+			if (SamplesHelper.tokenCacheFile != null) {
+				tokenManager.setCacheFile(new File(SamplesHelper.tokenCacheFile));
+			}
+			if (SamplesHelper.tokenRefreshMarginSeconds > 0) {
+				tokenManager.enableBackgroundRefresh(SamplesHelper.tokenRefreshMarginSeconds * 1000L);
+			}
 			samplesHelper = new SamplesHelper();
 		} catch (Exception e) {
 			LOGGER.error("Caught exception initializing token manager",e);
@@ -76,14 +222,54 @@ public class AfhentBesked {
     	
     	LOGGER.info("main: Setting up SSL...");
     	samplesHelper.setupSsl();
-    	
+
+    	LOGGER.info("main: Preparing XML codecs...");
+    	JaxbCodec.warmUp(HaendelsesbeskedType.class);
+    	try {
+    		validation = ValidationMonitor.parse(validationMode);
+    	} catch (IllegalArgumentException e) {
+    		LOGGER.error("main: "+e.getMessage()+", exiting.");
+    		tokenManager.shutdown();
+    		return;
+    	}
+
+    	if (!SamplesHelper.prefetchCVRNumbers.isEmpty()) {
+    		LOGGER.info("main: Prefetching tokens...");
+    		tokenManager.prefetchTokens(SamplesHelper.getTokenRequests(SamplesHelper.beskedfordelerAfhentServiceURI), samplesHelper.getCertificate(), SamplesHelper.prefetchConcurrency);
+    	}
+
     	LOGGER.info("main: Fetching token...");
         fetchToken();
-        LOGGER.debug("main: Token:\n"+SamplesHelper.prettyPrintXML(decodedToken));
-        String tokenPriviledges = TokenManager.getTokenPriviledges(token);
-		LOGGER.debug("main: Privileges:\n"+SamplesHelper.prettyPrintXML(tokenPriviledges));
+        if (LOGGER.isDebugEnabled()) {
+        	LOGGER.debug("main: Token:\n"+SamplesHelper.prettyPrintXML(decodedToken));
+        	String tokenPriviledges = tokenManager.getTokenPriviledges(SamplesHelper.requestCVRNumber, SamplesHelper.beskedfordelerAfhentServiceURI);
+        	if (tokenPriviledges != null) {
+        		LOGGER.debug("main: Privileges:\n"+SamplesHelper.prettyPrintXML(tokenPriviledges));
+        	}
+        }
+
+    	LOGGER.info("main: Opening journal...");
+        journal = MessageJournal.open(new File(outputDirectory), INBOUND_JOURNAL_NAME, MessageJournal.SyncPolicy.parse(SamplesHelper.journalSync),
+        		SamplesHelper.journalSegmentMBytes * 1024L * 1024L, SamplesHelper.journalSegmentMinutes * 60000L,
+        		SamplesHelper.journalCompress, SamplesHelper.journalSamplesDirectory);
+        index = new MessageIndex(new File(outputDirectory), INBOUND_JOURNAL_NAME, false);
+
+    	LOGGER.info("main: Starting message pipeline...");
+        if (dedupFile != null) {
+        	processedMessageIds = new MappedBeskedIdDedup(new File(dedupFile), dedupCapacity, dedupRetentionHours * 3600000L, dedupFlushMsecs);
+        } else {
+        	processedMessageIds = new BeskedIdDedup(dedupCapacity, dedupRetentionHours * 3600000L);
+        }
+        claims = new BeskedIdClaims(processedMessageIds);
+        pipeline = createPipeline();
+        pipeline.start();
 
     	LOGGER.info("main: Opening connection...");
+        recovery = new RecoveryManager(SamplesHelper.BESKEDFORDELER_RABBITMQ_VIRTUAL_HOST, () -> {
+        		fetchToken();
+        		return decodedToken;
+        	}, AfhentBesked::setUpChannel,
+        	SamplesHelper.recoveryBackoffMsecs, SamplesHelper.recoveryMaxBackoffMsecs, SamplesHelper.recoveryTimeoutSeconds * 1000L);
         openConnection();
 
     	LOGGER.info("main: Processing messages...");
@@ -91,7 +277,14 @@ public class AfhentBesked {
 
     	LOGGER.info("main: Closing connection...");
         closeConnection();
-        
+        AmqpConnectionPool.shared().close();
+        LOGGER.info("main: Connection recovery: "+recovery);
+        validation.close();
+        journal.close();
+        index.close();
+        processedMessageIds.close();
+        tokenManager.shutdown();
+
     	LOGGER.info("main: Exit time: "+(new Date().toString()));
     }
 
@@ -101,7 +294,7 @@ public class AfhentBesked {
 			if ("-dueslaguuid".equals(args[i])) {
 				if (i < args.length-1) {
 					i++;
-					dueslagId = args[i];
+					dueslagIds.add(args[i]);
 				} else {
 					LOGGER.error("Insufficient arguments to option "+args[i]);
 					parseOk = false;
@@ -114,10 +307,114 @@ public class AfhentBesked {
 					LOGGER.error("Insufficient arguments to option "+args[i]);
 					parseOk = false;
 				}
+			} else if ("-beskedtype".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					beskedtyper.add(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-validate".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					validationMode = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-decodeworkers".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					decodeWorkers = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-handleworkers".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					handleWorkers = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-persistworkers".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					persistWorkers = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-queuesize".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					queueSize = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-prefetch".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					prefetchCount = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-ackbatch".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					ackBatchSize = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-ackinterval".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					ackIntervalMsecs = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-dedupcapacity".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					dedupCapacity = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-dedupretention".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					dedupRetentionHours = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-dedupfile".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					dedupFile = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
+			} else if ("-dedupflush".equals(args[i])) {
+				if (i < args.length-1) {
+					i++;
+					dedupFlushMsecs = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option "+args[i]);
+					parseOk = false;
+				}
 			} else if ("-output".equals(args[i])) {
 				if (i < args.length-1) {
 					i++;
-					outputFile = args[i];
+					outputDirectory = args[i];
 				} else {
 					LOGGER.error("Insufficient arguments to option "+args[i]);
 					parseOk = false;
@@ -125,9 +422,22 @@ public class AfhentBesked {
 			} else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
 				System.out.println("usage: \n"+
 								   "-h | -help: this help message\n"+
-								   "-number <n>: retrieve n messages\n"+
-								   "-dueslaguuuid <uuid>: retrieve from queue with id = <uuid>\n"+
-								   "-output <file>: append retrieved messages to <file>");
+								   "-number <n>: stop after n messages (default: run until stopped)\n"+
+								   "-dueslaguuid <uuid>: retrieve from queue with id = <uuid> (may be repeated)\n"+
+								   "-validate <mode>: validate handled messages against the schema, off, sample:<n> (1 in n messages), sample:<n>:beskedtype (1 in n of each beskedtype) or async (all), in the background after acknowledging (default: "+validationMode+")\n"+
+								   "-output <dir>: journal retrieved messages in <dir> (default: "+INBOUND_JOURNAL_DIRECTORY+")\n"+
+								   "-beskedtype <uuid>: only handle messages with beskedtype <uuid> (may be repeated)\n"+
+								   "-decodeworkers <n>: threads reading message envelopes (default: "+decodeWorkers+")\n"+
+								   "-handleworkers <n>: threads handling messages (default: "+handleWorkers+")\n"+
+								   "-persistworkers <n>: threads persisting messages (default: "+persistWorkers+")\n"+
+								   "-queuesize <n>: messages waiting in front of each pipeline stage (default: "+queueSize+")\n"+
+								   "-prefetch <n>: unacknowledged messages the broker may send ahead, 0 for no limit (default: "+prefetchCount+")\n"+
+								   "-ackbatch <n>: acknowledge completed messages in batches of n, 1 to acknowledge each message (default: "+ackBatchSize+")\n"+
+								   "-ackinterval <ms>: maximum time before a completed message is acknowledged (default: "+ackIntervalMsecs+")\n"+
+								   "-dedupcapacity <n>: number of handled beskedIds remembered for duplicate detection (default: "+dedupCapacity+")\n"+
+								   "-dedupretention <hours>: minimum time a handled beskedId is remembered (default: "+dedupRetentionHours+")\n"+
+								   "-dedupfile <file>: keep handled beskedIds in <file> so duplicates are recognized after a restart\n"+
+								   "-dedupflush <ms>: how often <file> is forced to disk, 0 to force it before each acknowledgement (default: "+dedupFlushMsecs+")");
 				SamplesHelper.printUsage();	
 				System.exit(0);
 			}
@@ -137,102 +447,203 @@ public class AfhentBesked {
 	}
 
 	private static void processMessages() throws Exception {
+		// Let a shutdown (e.g. Ctrl-C) stop consuming and finish the messages in progress before the JVM exits
+		final Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stopRequested = true;
+			try {
+				mainThread.join(SHUTDOWN_TIMEOUT_MSECS * 2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "shutdown"));
+
         try {
-        	// Listen for messages and handle messages as they arrive (stop when retry fails)
-			for (int i=0; i<numberOfMessages; i++) {
-				LOGGER.info("main: Waiting for messages...");
-			    if (!handleNextMessage()) {
-			        break;
-			    }
+        	// Messages are handled by the pipeline as they arrive, here we only wait and watch the connection
+        	long lastReport = System.currentTimeMillis();
+			while (!stopRequested) {
+				if (numberOfMessages > 0) {
+					if (pipeline.awaitCompleted(numberOfMessages, CHECK_MSECS)) {
+						LOGGER.info("processMessages(): "+numberOfMessages+" messages handled, stopping");
+						break;
+					}
+				} else {
+					Thread.sleep(CHECK_MSECS);
+				}
+				if (System.currentTimeMillis() - lastReport >= WAIT_MSECS) {
+					LOGGER.debug("processMessages(): "+pipeline.getCompletedCount()+" messages handled, "+pipeline.getInFlightCount()+" in progress");
+					lastReport = System.currentTimeMillis();
+				}
+				if (!stopRequested && !channel.isOpen()) {
+					// Messages not yet acknowledged on the lost channel are delivered again on the new one
+					LOGGER.warn("processMessages(): Channel to queues "+dueslagIds+" is closed, reconnecting");
+					reopenConnection();
+				}
 			}
 		} catch (Exception e) {
+			// Also when the channel could not be reopened within the recovery timeout
 			LOGGER.error("Caught exception while handling messages",e);
 		}
+
+		// Stop receiving new messages, and let the ones already received be handled and acknowledged
+		try {
+			if (channel.isOpen()) {
+				for (String consumerTag : consumerTags) {
+					channel.basicCancel(consumerTag);
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception cancelling consumer",e);
+		}
+		pipeline.shutdown(SHUTDOWN_TIMEOUT_MSECS);
 	}
 
-    private static boolean handleNextMessage() throws Exception {
-        // Retry to handle next message 3 times
-        for (int i=0; i<3; i++) {
-            try {
-                // Wait for message on queue
-                QueueingConsumer.Delivery delivery = consumer.nextDelivery(REPLY_TIMEOUT_MSECS);
-                if (delivery == null) {
-                	LOGGER.info("handleNextMessage(): Received no reply on queue "+dueslagId+" within "+REPLY_TIMEOUT_MSECS+" ms, retrying");
-                	continue;
-                }
-                if (delivery.getProperties() == null) {
-                	LOGGER.warn("handleNextMessage(): Received reply on queue "+dueslagId+" with no properties, retrying");
-                	continue;
-                }
-                String transactionId = delivery.getProperties().getMessageId();
-                
-                // Convert XML from message to haendelsesbesked object
-                String messageString = new String(delivery.getBody(), "UTF-8");
-                LOGGER.debug("handleNextMessage(): Received message body\n"+messageString);
-                
-                // Could catch unmarshal error and place message on error queue
-                HaendelsesbeskedType haendelsesbesked = (HaendelsesbeskedType)SamplesHelper.unmarshal(HaendelsesbeskedType.class, messageString);
-                
-                String beskedId = haendelsesbesked.getBeskedId().getUUIDIdentifikator();
-
-				boolean multiple=false;
-                long deliveryTag = delivery.getEnvelope().getDeliveryTag();
-				if (beskedId == null || "".equals(beskedId)) {
-                	LOGGER.warn("handleNextMessage(): Received reply on queue "+dueslagId+" with no besked id (transaction id = "+transactionId+", delivery tag "+deliveryTag+"). NACK'ing message");
-
-                	boolean requeue=false;
-                	channel.basicNack(deliveryTag, multiple, requeue);
-                } else {
-	                //Checking whether or not this message has been received already.
-	                //This is only to illustrate how to do a not acknowledge!
-	                if (processedMessageIds.contains(beskedId)) {
-	                	LOGGER.debug("handleNextMessage(): Message received with processed (seen) beskedId: " + beskedId + ". Acknowledging (transaction id = "+transactionId+", delivery tag "+deliveryTag+") again.");
-	                	// Just acknowledge message again
-	                	channel.basicAck(deliveryTag, multiple);	                	
-	                } else {
-	                	LOGGER.debug("handleNextMessage(): Message received with NEW (unprocessed) beskedId: " + beskedId);                	
-	                    
-	            		String besked = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
-	            		LOGGER.info("handleNextMessage(): Got message");
-	            		LOGGER.debug("handleNextMessage():\n"+SamplesHelper.prettyPrintXML(besked));
-	
-	                	// Example of simple persistence of the message
-	                	SimpelPersistering.persistMessage(haendelsesbesked, outputFile);
-	                	
-	                	try {
-	                		// Handle haendelsesbesked according to the external systems scenario
-	                		LOGGER.debug("handleNextMessage(): BEGIN Processing message with beskedId: " + beskedId);
-
-							// TODO: PROCESS MESSAGE HERE - simulate
-
-	                		LOGGER.debug("handleNextMessage(): END Processing message with beskedId: " + beskedId);                		                	
-	                	} catch (Exception e) {
-	                		LOGGER.error("Caught exception while processing message (will not acknowledge message)",e);
-	                		throw new IOException(e);
-	                	}
-	                	
-	                	// Add to processed list
-	                	processedMessageIds.add(beskedId);
-	                	
-	                	LOGGER.info("handleNextMessage(): Acknowledging beskedId: " + beskedId + " (transaction id = "+transactionId+", delivery tag "+deliveryTag+").");	                	
-
-	                	// Acknowledgment message when handling is completed
-	                    channel.basicAck(deliveryTag, multiple);
-	                }
-                }
-				// Return true to continue handling next messages
-				return true;
-
-            } catch (IOException e) {
-            	LOGGER.error("Caught exception while processing message",e);
-            	
-                // If network exceptions happens we will reconnect and retry
-                reopenConnection();
-            }
+    private static StagedPipeline<Modtagelse> createPipeline() {
+    	return new StagedPipeline<Modtagelse>(queueSize, (modtagelse, stageName, e) -> {
+    		// Message is requeued and will be delivered again
+    		LOGGER.error("Caught exception in stage "+stageName+" while processing message "+modtagelse+" (will not acknowledge message)",e);
+    		if (modtagelse.claimed) {
+    			// Let the redelivered copy be handled
+    			claims.release(modtagelse.beskedId);
+    		}
+    		modtagelse.nack(true);
+    	})
+    			.addStage("decode", decodeWorkers, AfhentBesked::decode)
+    			.addStage("dedup", 1, AfhentBesked::dedup)
+    			.addStage("handle", handleWorkers, AfhentBesked::handle)
+    			.addStage("persist", persistWorkers, AfhentBesked::persist)
+    			.addStage("ack", 1, AfhentBesked::acknowledge);
+    }
+
+    private static boolean decode(Modtagelse modtagelse) throws IOException {
+        // The message body is kept as bytes, it is only decoded to a String for debug output
+        if (LOGGER.isDebugEnabled()) {
+        	LOGGER.debug("decode(): Received message body\n"+new String(modtagelse.body, "UTF-8"));
+        }
+
+        // Read only the envelope, the full message is unmarshalled when it is actually going to be handled
+        try {
+            modtagelse.envelope = HaendelsesbeskedEnvelope.peek(modtagelse.body);
+        } catch (XMLStreamException e) {
+        	// Could place message on error queue
+        	LOGGER.warn("decode(): Received reply on queue "+modtagelse.queue+" which could not be parsed ("+modtagelse+"). NACK'ing message", e);
+        	modtagelse.nack(false);
+        	return false;
         }
 
-        // Return false to stop handling more messages
-        return false;
+        modtagelse.beskedId = modtagelse.envelope.getBeskedId();
+		if (modtagelse.beskedId == null || "".equals(modtagelse.beskedId)) {
+        	LOGGER.warn("decode(): Received reply on queue "+modtagelse.queue+" with no besked id ("+modtagelse+"). NACK'ing message");
+        	modtagelse.nack(false);
+        	return false;
+		}
+		return true;
+    }
+
+    private static boolean dedup(Modtagelse modtagelse) {
+        //Checking whether or not this message has been received already.
+        //This is only to illustrate how to do a not acknowledge!
+        if (!beskedtyper.isEmpty() && !beskedtyper.contains(modtagelse.envelope.getBeskedtype())) {
+        	LOGGER.debug("dedup(): Message received with beskedId: " + modtagelse.beskedId + " has beskedtype " + modtagelse.envelope.getBeskedtype() + " which is not handled. Acknowledging ("+modtagelse+") without processing.");
+        	return false;
+        }
+        // Claimed until it is persisted, so a copy arriving while this one is in the pipeline is not handled as well
+        BeskedIdClaims.Claim claim = claims.claim(modtagelse.beskedId, handled -> settleParked(modtagelse, handled));
+        if (claim == BeskedIdClaims.Claim.WAITING) {
+        	// The other copy may still fail, so this one is not acknowledged until it is known whether it was handled
+        	LOGGER.debug("dedup(): Message received with beskedId: " + modtagelse.beskedId + " which is being processed. Waiting for it ("+modtagelse+").");
+        	modtagelse.parked = true;
+        	return false;
+        }
+        if (claim == BeskedIdClaims.Claim.HANDLED) {
+        	LOGGER.debug("dedup(): Message received with processed (seen) beskedId: " + modtagelse.beskedId + ". Acknowledging ("+modtagelse+") again.");
+        	// Just acknowledge message again
+        	return false;
+        }
+        modtagelse.claimed = true;
+        LOGGER.debug("dedup(): Message received with NEW (unprocessed) beskedId: " + modtagelse.beskedId);
+        return true;
+    }
+
+    /**
+     * Settles a message that waited for another copy, on the thread that completed or released the other copy's claim.
+     */
+    private static void settleParked(Modtagelse modtagelse, boolean handled) {
+    	if (!modtagelse.channel.isOpen()) {
+    		LOGGER.warn("settleParked(): Channel closed before message could be settled ("+modtagelse+"), it will be delivered again");
+    		return;
+    	}
+    	try {
+    		if (handled) {
+    			LOGGER.debug("settleParked(): Other copy of beskedId: " + modtagelse.beskedId + " was processed. Acknowledging ("+modtagelse+").");
+    			modtagelse.acks.ack(modtagelse.deliveryTag);
+    		} else {
+    			// The other copy is delivered again as well, and whichever arrives first is handled
+    			LOGGER.debug("settleParked(): Other copy of beskedId: " + modtagelse.beskedId + " failed. Requeueing ("+modtagelse+").");
+    			modtagelse.acks.nack(modtagelse.deliveryTag, true);
+    		}
+    	} catch (IOException e) {
+    		LOGGER.warn("settleParked(): Caught exception settling message ("+modtagelse+"), it will be delivered again", e);
+    	}
+    }
+
+    private static boolean handle(Modtagelse modtagelse) throws Exception {
+    	// Convert XML from message to haendelsesbesked object
+    	// Could catch unmarshal error and place message on error queue
+    	HaendelsesbeskedType haendelsesbesked = SamplesHelper.unmarshal(HaendelsesbeskedType.class, modtagelse.body);
+
+		LOGGER.info("handle(): Got message with beskedId: " + modtagelse.beskedId);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("handle():\n"+SamplesHelper.prettyPrintXML(new String(modtagelse.body, "UTF-8")));
+		}
+
+		// Handle haendelsesbesked according to the external systems scenario
+		LOGGER.debug("handle(): BEGIN Processing message with beskedId: " + haendelsesbesked.getBeskedId().getUUIDIdentifikator());
+
+		// TODO: PROCESS MESSAGE HERE - simulate
+
+		LOGGER.debug("handle(): END Processing message with beskedId: " + haendelsesbesked.getBeskedId().getUUIDIdentifikator());
+		return true;
+    }
+
+    private static boolean persist(Modtagelse modtagelse) throws IOException {
+    	// The received bytes are stored in the journal as they are, and indexed for searching with SoegBesked
+    	long location = journal.append(modtagelse.body);
+    	index.add(modtagelse.envelope, location);
+    	if (dedupFile != null) {
+    		// The handled beskedIds survive a restart, so the message must be on disk before its id is remembered
+    		// (the persist workers share the sync, and with "-journalsync message" it is already done)
+    		journal.flush();
+    	}
+
+    	// Add to processed list, which also gives up the claim
+    	claims.complete(modtagelse.beskedId);
+    	modtagelse.persisted = true;
+    	return true;
+    }
+
+    private static boolean acknowledge(Modtagelse modtagelse) throws IOException {
+    	if (modtagelse.parked) {
+    		// Settled when the other copy of the message is
+    		return true;
+    	}
+    	// Delivery tags belong to the channel the message was received on, and cannot be acknowledged on any other
+    	if (!modtagelse.channel.isOpen()) {
+    		LOGGER.warn("acknowledge(): Channel closed before message could be acknowledged ("+modtagelse+"), it will be delivered again");
+    		return true;
+    	}
+    	if (modtagelse.ack) {
+    		LOGGER.info("acknowledge(): Acknowledging beskedId: " + modtagelse.beskedId + " ("+modtagelse+").");
+    		// Acknowledgment message when handling is completed (sent to the broker with the next batch)
+    		modtagelse.acks.ack(modtagelse.deliveryTag);
+    		if (modtagelse.persisted) {
+    			// Validated (if at all) on a background thread, so it does not delay the acknowledgements
+    			validation.inspect(modtagelse.envelope, modtagelse.body);
+    		}
+    	} else {
+    		modtagelse.acks.nack(modtagelse.deliveryTag, modtagelse.requeue);
+    	}
+    	return true;
     }
 
 	private static void fetchToken() throws SAXException, IOException, ParserConfigurationException {
@@ -251,50 +662,63 @@ public class AfhentBesked {
 	}
 
     private static void openConnection() throws Exception {
-    	LOGGER.debug("Opening connection to AMQP host on "+SamplesHelper.beskedfordelerHostname+":"+SamplesHelper.beskedfordelerPortnumber);
-        // Setup AMQP connection
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(SamplesHelper.beskedfordelerHostname);
-        factory.setPort(SamplesHelper.beskedfordelerPortnumber);
-
-        SSLContext sc = SSLContext.getInstance("TLS");
-		TrustManager[] tm = SamplesHelper.getTrustManagers();
-        KeyManager[] km = SamplesHelper.getKeyManagers();   
-        sc.init(km, tm, new java.security.SecureRandom());
-
-        factory.useSslProtocol(sc);
-        
-        factory.setVirtualHost(SamplesHelper.BESKEDFORDELER_RABBITMQ_VIRTUAL_HOST);
-
-        // Setup SASL config using security-token
-        factory.setSaslConfig(new TokenSaslConfig(decodedToken));
-
-        // Open AMQP connection
-        conn = factory.newConnection();
-        channel = conn.createChannel();
+        // Connections are shared per virtual host and token, and use the key material loaded once by SecurityContext
+        channel = recovery.open();
+    }
 
-        // Setup consumer to watch for messages on the queue
-        LOGGER.info("Connecting to queue "+dueslagId);
+    /**
+     * Sets up the consumers on a channel, when it is first opened and each time it is opened again after a failure.
+     */
+    private static void setUpChannel(Channel channel) throws IOException {
+        // Setup consumers to watch for messages on the queues
+        LOGGER.info("Connecting to queues "+dueslagIds);
         
-        consumer = new QueueingConsumer(channel);
+        // Limit the number of unacknowledged messages on the channel, so the broker does not flood the pipeline
+        if (prefetchCount > 0) {
+        	channel.basicQos(prefetchCount);
+        }
+        if (acks != null) {
+        	// From an earlier attempt, with nothing left to acknowledge
+        	acks.close();
+        }
+        acks = new AckCoalescer(channel, ackBatchSize, ackIntervalMsecs);
+        if (dedupFile != null && dedupFlushMsecs <= 0) {
+        	// Journaled messages and handled beskedIds are on disk before the broker forgets the messages
+        	acks.setBeforeAck(() -> {
+        		journal.flush();
+        		processedMessageIds.flush();
+        	});
+        }
+
         boolean autoAck = false;
-        channel.basicConsume(dueslagId, autoAck, consumer);
+        consumerTags.clear();
+        for (String queue : dueslagIds) {
+        	consumerTags.add(channel.basicConsume(queue, autoAck, new DueslagConsumer(channel, acks, queue)));
+        }
     }
 
     private static void closeConnection() throws Exception {
         // Close AMPQ connection when no used anymore (reuse same connection for multiple messages for performance)
     	LOGGER.debug("Closing connection");
     	try {
-	        channel.close();
-	        conn.close();
+    		// Send the acknowledgements still waiting in the current batch
+    		if (acks != null) {
+    			acks.close();
+    		}
     	} catch (Exception e) {
     		LOGGER.warn("Caught exception closing connection",e);
     	}
+    	// Messages may still be unacknowledged, so the channel is not used again, but the connection is kept
+    	AmqpConnectionPool.shared().closeChannel(channel);
     }
 
     private static void reopenConnection() throws Exception {
     	LOGGER.debug("Reopening connection");
-        closeConnection();
-        openConnection();
+    	if (acks != null) {
+    		acks.close();
+    		acks = null;
+    	}
+    	// Waits longer between each failed attempt, and throws if the channel cannot be reopened within the recovery timeout
+    	channel = recovery.recover(channel);
     }
 }
@@ -1,37 +1,44 @@
 package dk.kombit.samples.beskedfordeler.amqp;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Date;
+import java.util.Deque;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBException;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
-import com.rabbitmq.client.ReturnListener;
 import dk.kombit.bf.beskedkuvert.FiltreringsdataType;
 import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
 import dk.kombit.bf.beskedkuvert.ObjektRegistreringType;
@@ -44,16 +51,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
-import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
 
+import dk.kombit.samples.JaxbCodec;
 import dk.kombit.samples.SamplesHelper;
+import dk.kombit.samples.SchemaValidator;
 import dk.kombit.samples.TokenManager;
-import dk.kombit.samples.beskedfordeler.SimpelPersistering;
+import dk.kombit.samples.beskedfordeler.MessageJournal;
+import dk.kombit.samples.beskedfordeler.MessageTemplate;
 
 /**
  * Sample class illustrating how to obtain a security token and send a message to distribution by Beskedfordeler.
@@ -63,8 +68,11 @@ import dk.kombit.samples.beskedfordeler.SimpelPersistering;
 public class AfsendBesked {
 	private static final Logger LOGGER = LoggerFactory.getLogger(AfsendBesked.class);
 
-	private static final String OUTBOUND_MESSAGE_STORE_FILENAME = "haendelsesbesked-afsend.xml";
+	private static final String OUTBOUND_JOURNAL_DIRECTORY = "haendelsesbesked-afsend";
+	private static final String OUTBOUND_JOURNAL_NAME = "afsend";
 	private static final int NUMBER_OF_PUBLISH_RETRIES = 3;
+	// Messages not answered because the connection was lost are sent again without counting as a retry, up to this many times
+	private static final int NUMBER_OF_RESENDS = 10;
 
 	// Find Anvendersystem Identity UUID (may be found in beskedfordeler UI)
 	private static String anvendersystemId = "cf12c051-39ce-4066-ba11-704b46fa23c4";
@@ -74,15 +82,63 @@ public class AfsendBesked {
 
 	private static final int REPLY_TIMEOUT_MSECS = 10000;
 
-	private static Connection conn;
+	// Number of calls outstanding at a time on the channel
+	private static int publishWindow = 100;
+
 	private static Channel channel;
+	private static AsyncPublisher publisher;
+	private static RecoveryManager recovery;
 	private static TokenManager tokenManager;
+	private static MessageJournal journal;
 	private static SamplesHelper samplesHelper;
 	private static String token;
 	private static String decodedToken;
 
 	private static String messageFile = "src/main/resources/beskeder/testbesked01.xml";
 
+	// Bulk mode: send every message in a directory, matching a glob or listed in a file, over one connection
+	private static String messageDirectory;
+	private static String messageGlob;
+	private static String messageList;
+	private static String reportFile = "afsend-report.csv";
+	// Bulk mode: send this many messages generated from the message file, each with a new BeskedId and Dannelsestidspunkt
+	private static int generateCount = 0;
+
+	private static DatatypeFactory datatypeFactory;
+
+	/**
+	 * Where the messages of a bulk send come from.
+	 */
+	private interface BulkSource {
+		/**
+		 * @param report the report to record messages that cannot be read in
+		 * @return the next message to send, or null if there are no more
+		 */
+		BulkMessage next(BulkReport report) throws IOException;
+	}
+
+	/**
+	 * A message of a bulk send and its current attempt.
+	 */
+	private static class BulkMessage {
+		final File file;
+		final String beskedId;
+		final byte[] bytes;
+		final String transactionId = UUID.randomUUID().toString();
+		int attempts = 0;
+		int resends = 0;
+		long sent;
+		long latency;
+		StandardReturType output;
+		Throwable error;
+
+		BulkMessage(File file, String beskedId, byte[] bytes) {
+			this.file = file;
+			this.beskedId = beskedId;
+			this.bytes = bytes;
+		}
+	}
+
 	public static void main(String[] args) throws Exception {
 
 		if (!parseArguments(args)) {
@@ -99,6 +155,12 @@ public class AfsendBesked {
 		try {
 			samplesHelper = new SamplesHelper();
 			tokenManager = new TokenManager(SamplesHelper.stsRESTUrl);
+			if (SamplesHelper.tokenCacheFile != null) {
+				tokenManager.setCacheFile(new File(SamplesHelper.tokenCacheFile));
+			}
+			if (SamplesHelper.tokenRefreshMarginSeconds > 0) {
+				tokenManager.enableBackgroundRefresh(SamplesHelper.tokenRefreshMarginSeconds * 1000L);
+			}
 		} catch (Exception e) {
 			LOGGER.error("Caught exception initializing token manager", e);
 			return;
@@ -107,28 +169,100 @@ public class AfsendBesked {
 		LOGGER.info("main: Setting up SSL...");
 		samplesHelper.setupSsl();
 
+		LOGGER.info("main: Preparing XML codecs...");
+		JaxbCodec.warmUp(HaendelsesbeskedType.class, StandardReturType.class);
+
+		if (!SamplesHelper.prefetchCVRNumbers.isEmpty()) {
+			LOGGER.info("main: Prefetching tokens...");
+			tokenManager.prefetchTokens(SamplesHelper.getTokenRequests(SamplesHelper.beskedfordelerAfsendServiceURI), samplesHelper.getCertificate(), SamplesHelper.prefetchConcurrency);
+		}
+
 		LOGGER.info("main: Fetching token...");
 		fetchToken();
-		LOGGER.debug("main: Token:\n" + SamplesHelper.prettyPrintXML(decodedToken));
-		String tokenPriviledges = TokenManager.getTokenPriviledges(token);
-		LOGGER.debug("main: Privileges:\n" + SamplesHelper.prettyPrintXML(tokenPriviledges));
-
-		LOGGER.info("main: Building message...");
-		//validate xml and load from file
-		validateXML(messageFile);
-		HaendelsesbeskedType haendelsesbesked = loadHaendelsesBeskedFromFile(messageFile);
-		setupMessage(haendelsesbesked);
-		String besked = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
-		LOGGER.debug("main: Got message\n" + SamplesHelper.prettyPrintXML(besked));
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("main: Token:\n" + SamplesHelper.prettyPrintXML(decodedToken));
+			String tokenPriviledges = tokenManager.getTokenPriviledges(SamplesHelper.requestCVRNumber, SamplesHelper.beskedfordelerAfsendServiceURI);
+			if (tokenPriviledges != null) {
+				LOGGER.debug("main: Privileges:\n" + SamplesHelper.prettyPrintXML(tokenPriviledges));
+			}
+		}
+
+		BulkSource bulk = null;
+		int bulkCount = 0;
+		HaendelsesbeskedType haendelsesbesked = null;
+		if (generateCount > 0) {
+			LOGGER.info("main: Compiling message template...");
+			if (!validateXML(messageFile)) {
+				LOGGER.error("main: Message is not valid, exiting.");
+				tokenManager.shutdown();
+				return;
+			}
+			bulk = generateMessages(messageFile, generateCount);
+			bulkCount = generateCount;
+		} else if (messageDirectory != null || messageGlob != null || messageList != null) {
+			LOGGER.info("main: Listing messages...");
+			List<File> bulkFiles = listMessageFiles();
+			if (bulkFiles.isEmpty()) {
+				LOGGER.error("main: No messages to send, exiting.");
+				tokenManager.shutdown();
+				return;
+			}
+			Iterator<File> next = bulkFiles.iterator();
+			bulk = report -> {
+				while (next.hasNext()) {
+					BulkMessage message = readBulkMessage(next.next(), report);
+					if (message != null) {
+						return message;
+					}
+				}
+				return null;
+			};
+			bulkCount = bulkFiles.size();
+		} else {
+			LOGGER.info("main: Building message...");
+			//validate xml and load from file
+			if (!validateXML(messageFile)) {
+				LOGGER.error("main: Message is not valid, exiting.");
+				tokenManager.shutdown();
+				return;
+			}
+			haendelsesbesked = loadHaendelsesBeskedFromFile(messageFile);
+			setupMessage(haendelsesbesked);
+			if (LOGGER.isDebugEnabled()) {
+				String besked = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
+				LOGGER.debug("main: Got message\n" + SamplesHelper.prettyPrintXML(besked));
+			}
+		}
+
+		LOGGER.info("main: Opening journal...");
+		journal = MessageJournal.open(new File(OUTBOUND_JOURNAL_DIRECTORY), OUTBOUND_JOURNAL_NAME, MessageJournal.SyncPolicy.parse(SamplesHelper.journalSync),
+				SamplesHelper.journalSegmentMBytes * 1024L * 1024L, SamplesHelper.journalSegmentMinutes * 60000L,
+				SamplesHelper.journalCompress, SamplesHelper.journalSamplesDirectory);
 
 		LOGGER.info("main: Opening connection...");
+		recovery = new RecoveryManager(SamplesHelper.BESKEDFORDELER_RABBITMQ_VIRTUAL_HOST, () -> {
+				fetchToken();
+				return decodedToken;
+			},
+			// One reply consumer and return listener for all messages published on the channel
+			c -> publisher = new AsyncPublisher(c, publishWindow, REPLY_TIMEOUT_MSECS),
+			SamplesHelper.recoveryBackoffMsecs, SamplesHelper.recoveryMaxBackoffMsecs, SamplesHelper.recoveryTimeoutSeconds * 1000L);
 		openConnection();
 
-		LOGGER.info("main: Sending message...");
-		publishMessage(haendelsesbesked);
+		if (bulk != null) {
+			LOGGER.info("main: Sending " + bulkCount + " messages...");
+			sendBulk(bulk);
+		} else {
+			LOGGER.info("main: Sending message...");
+			publishMessage(haendelsesbesked);
+		}
 
 		LOGGER.info("main: Closing connection...");
 		closeConnection();
+		AmqpConnectionPool.shared().close();
+		LOGGER.info("main: Connection recovery: " + recovery);
+		journal.close();
+		tokenManager.shutdown();
 
 		LOGGER.info("main: Exit time: " + (new Date().toString()));
 	}
@@ -159,6 +293,54 @@ public class AfsendBesked {
 					LOGGER.error("Insufficient arguments to option " + args[i]);
 					parseOk = false;
 				}
+			} else if ("-messagedir".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					messageDirectory = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
+			} else if ("-messageglob".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					messageGlob = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
+			} else if ("-messagelist".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					messageList = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
+			} else if ("-report".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					reportFile = args[i];
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
+			} else if ("-generate".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					generateCount = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
+			} else if ("-window".equals(args[i])) {
+				if (i < args.length - 1) {
+					i++;
+					publishWindow = Integer.parseInt(args[i]);
+				} else {
+					LOGGER.error("Insufficient arguments to option " + args[i]);
+					parseOk = false;
+				}
 			} else if ("-newmessageuuid".equals(args[i])) {
 				issueNewMessageUUID = true;
 			} else if ("-overridecvr".equals(args[i])) {
@@ -169,7 +351,13 @@ public class AfsendBesked {
 						"-messagefile <file>: send the XML message stored in <file>\n" +
 						"-sendersystemuuid <uuid>: the sending systems UUID should be <uuid>\n" +
 						"-overridecvr: forcibly set CVR numbers in message to supplied CVR number\n" +
-						"-newmessageuuid: forcibly set BeskedId in message to new value");
+						"-newmessageuuid: forcibly set BeskedId in message to new value\n" +
+						"-messagedir <dir>: send all XML messages (*.xml) in <dir> over one connection\n" +
+						"-messageglob <pattern>: send all messages matching <pattern>, e.g. \"beskeder/**/*.xml\"\n" +
+						"-messagelist <file>: send the messages listed in <file>, one file name per line (- for standard input)\n" +
+						"-generate <n>: send <n> messages made from the message file, each with a new BeskedId and Dannelsestidspunkt\n" +
+						"-report <file>: write the statusKode and latency of each message sent in bulk to <file> (default: " + reportFile + ")\n" +
+						"-window <n>: have at most <n> messages waiting for a reply at a time (default: " + publishWindow + ")");
 				SamplesHelper.printUsage();
 				System.exit(0);
 			}
@@ -186,8 +374,10 @@ public class AfsendBesked {
 	private static void setupMessage(HaendelsesbeskedType haendelsesbesked)
 			throws DatatypeConfigurationException {
 		try {
-			String besked1 = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
-			LOGGER.debug("Message before setup:\n" + SamplesHelper.prettyPrintXML(besked1));
+			if (LOGGER.isDebugEnabled()) {
+				String besked1 = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
+				LOGGER.debug("Message before setup:\n" + SamplesHelper.prettyPrintXML(besked1));
+			}
 
 			// ensure our anvendersystemId is set up in message (so sender == this sender)
 			FiltreringsdataType filtreringsdata = haendelsesbesked.getBeskedkuvert().getFiltreringsdata();
@@ -265,10 +455,15 @@ public class AfsendBesked {
 			TidspunktType tt = new TidspunktType();
 			GregorianCalendar c = new GregorianCalendar();
 			c.setTime(new Date());
-			tt.setTidsstempelDatoTid(DatatypeFactory.newInstance().newXMLGregorianCalendar(c));
+			if (datatypeFactory == null) {
+				datatypeFactory = DatatypeFactory.newInstance();
+			}
+			tt.setTidsstempelDatoTid(datatypeFactory.newXMLGregorianCalendar(c));
 			haendelsesbesked.getBeskedkuvert().getLeveranceinformation().setDannelsestidspunkt(tt);
-			besked1 = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
-			LOGGER.debug("Message after setup:\n" + SamplesHelper.prettyPrintXML(besked1));
+			if (LOGGER.isDebugEnabled()) {
+				String besked1 = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
+				LOGGER.debug("Message after setup:\n" + SamplesHelper.prettyPrintXML(besked1));
+			}
 		} catch (Exception e) {
 			LOGGER.error("Caught exception while setting up message", e);
 			throw new RuntimeException(e);
@@ -290,83 +485,37 @@ public class AfsendBesked {
 
 		LOGGER.info("publishMessage: Publising message with transactionId=" + transactionId);
 
+		// Convert input object to XML for the RPC-call once, the same bytes are used for every attempt
+		String inputString = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
+		byte[] inputBytes = inputString.getBytes(Charset.forName("UTF-8"));
+
 		// Retry to send message N times
 		for (int i = 0; i < NUMBER_OF_PUBLISH_RETRIES; i++) {
 			try {
-				// Setup details for message properties
-				String corrId = UUID.randomUUID().toString(); // CorrelationId for the RPC-call, used to pair with request and response
-
-				// Add security-token to the message header
-				Map<String, Object> headers = new HashMap<String, Object>();
-				headers.put("token", decodedToken);
-
-				// Build message properties object
-				AMQP.BasicProperties props = new AMQP.BasicProperties
-						.Builder()
-						.correlationId(corrId)
-						// reply to property have to be set to point to pseudo queue associated with the channel (Direct Reply method)
-						.replyTo(SamplesHelper.PUBLISH_REPLY_QUEUE)
-						// custom headers: token have to be passed to the processing service in message header
-						.headers(headers)
-						.messageId(transactionId)
-						.build();
-
-				LOGGER.debug("publishMessage:attempt " + (1 + i) + ": Publishing message with transactionId=" + transactionId + " correlationId=" + corrId);
-
-				// Convert input object to XML-string for the RPC-call
-				String inputString = SamplesHelper.marshal(haendelsesbesked, SamplesHelper.HAENDELSESBESKED_QNAME);
-
-				// Setup consumer to listen for the RPC-reply
-				QueueingConsumer consumer = new QueueingConsumer(channel);
-				channel.basicConsume(SamplesHelper.PUBLISH_REPLY_QUEUE, true, consumer);
-
-				// A listener there checks for silent errors
-				channel.addReturnListener(new ReturnListener() {
-					public void handleReturn(int replyCode, String replyText, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
-						LOGGER.error("The message was silently dropped, with reply code: " + replyCode + " exchange: " + exchange + " routingKey: " + routingKey);
-					}
-				});
-
+				LOGGER.debug("publishMessage:attempt " + (1 + i) + ": Publishing message with transactionId=" + transactionId);
 				LOGGER.debug("Publishing data:\n" + inputString);
 
-				// Send the RPC-request using AMQP
-				channel.basicPublish(SamplesHelper.PUBLISH_EXCHANGE_NAME, SamplesHelper.DISTRIBUTION_QUEUE_NAME, true, false, props, inputString.getBytes(Charset.forName("UTF-8")));
-
-				// Wait for the RPC-reply (matching on correlationId)
-				String outputString = "";
-				boolean replyReceived = false;
-				while (true) {
-					QueueingConsumer.Delivery delivery = consumer.nextDelivery(REPLY_TIMEOUT_MSECS);
-					if (delivery == null) {
-						break;
+				// Send the RPC-request using AMQP and wait for the RPC-reply
+				StandardReturType output;
+				try {
+					output = publisher.publish(inputBytes, transactionId, decodedToken).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof TimeoutException) {
+						LOGGER.info("Received no reply from consumer within timeout of " + REPLY_TIMEOUT_MSECS + " ms, retrying sending");
+						reopenConnection();
+						continue;
 					}
-					BasicProperties replyProperties = delivery.getProperties();
-					LOGGER.debug("Received reply for request with correlation id " + replyProperties.getCorrelationId());
-					if (replyProperties.getCorrelationId().equals(corrId)) {
-						outputString = new String(delivery.getBody(), "UTF-8");
-						replyReceived = true;
-						LOGGER.debug("Received reply:\n***\n" + outputString + "\n***");
-						break;
-					}
-				}
-
-				if (!replyReceived) {
-					LOGGER.info("Received no reply from consumer within timeout of " + REPLY_TIMEOUT_MSECS + " ms, retrying sending");
-					reopenConnection();
-					continue;
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
 				}
 
-				// Convert RPC-reply from XML-string to output object
-				StandardReturType output = SamplesHelper.unmarshal(StandardReturType.class, outputString);
-
 				// Handle the RPC-reply
 				int statusKode = output.getStatusKode().intValue();
 				if (statusKode == 20) {
 					// Service executed successfully
 					LOGGER.info("Publish executed successfully");
 
-					// Example of simple persistance of the message
-					SimpelPersistering.persistMessage(haendelsesbesked, OUTBOUND_MESSAGE_STORE_FILENAME);
+					// Keep the sent message in the journal, using the bytes that were published
+					journal.append(inputBytes);
 
 					// Handle success according to the external systems scenario
 					//...
@@ -401,6 +550,223 @@ public class AfsendBesked {
 		}
 	}
 
+	/**
+	 * Publishes the messages from a source over the current connection, with up to {@link #publishWindow} messages waiting
+	 * for a reply at a time. Messages without a reply, and messages rejected because the token expired, are published
+	 * again up to {@value #NUMBER_OF_PUBLISH_RETRIES} times. When the connection is lost, it is reopened by the
+	 * {@link RecoveryManager} and the messages that were not answered are published again on the new channel. The result of each message is written to {@link #reportFile},
+	 * and a summary is logged at the end.
+	 *
+	 * @param source the messages to send
+	 * @throws Exception thrown if the report cannot be written or the connection cannot be reopened
+	 */
+	private static void sendBulk(BulkSource source) throws Exception {
+		// Results are handled on this thread, so the report and journal are written in one place
+		BlockingQueue<BulkMessage> completed = new LinkedBlockingQueue<BulkMessage>();
+		Deque<BulkMessage> retries = new ArrayDeque<BulkMessage>();
+		boolean exhausted = false;
+		int outstanding = 0;
+
+		try (BulkReport report = new BulkReport(new File(reportFile))) {
+			while (!exhausted || !retries.isEmpty() || outstanding > 0) {
+				// Handle the replies received so far, waiting for one when there is nothing else to do
+				BulkMessage done = !exhausted || !retries.isEmpty() ? completed.poll() : completed.take();
+				boolean renewToken = false;
+				while (done != null) {
+					outstanding--;
+					renewToken |= handleBulkResult(done, retries, report);
+					done = completed.poll();
+				}
+				if (renewToken) {
+					// The token is sent with each message, so a new token is used from the next message on
+					LOGGER.info("Renewing token");
+					fetchToken();
+				}
+				if (!channel.isOpen()) {
+					// Outstanding messages fail when the channel closes, and are published again on the new connection
+					LOGGER.warn("Channel closed, reopening connection");
+					reopenConnection();
+				}
+
+				BulkMessage message;
+				if (!retries.isEmpty()) {
+					message = retries.poll();
+				} else if (!exhausted) {
+					message = source.next(report);
+					if (message == null) {
+						exhausted = true;
+						continue;
+					}
+				} else {
+					continue;
+				}
+
+				message.attempts++;
+				message.sent = System.currentTimeMillis();
+				final BulkMessage m = message;
+				publisher.publish(message.bytes, message.transactionId, decodedToken).whenComplete((output, e) -> {
+					m.latency = System.currentTimeMillis() - m.sent;
+					m.output = output;
+					m.error = e instanceof CompletionException ? e.getCause() : e;
+					completed.add(m);
+				});
+				outstanding++;
+			}
+			LOGGER.info("Bulk send finished, report written to " + reportFile + "\n" + report.summary());
+		}
+	}
+
+	/**
+	 * Handles the reply to a message of a bulk send.
+	 *
+	 * @return true if the message was rejected because the token has expired
+	 */
+	private static boolean handleBulkResult(BulkMessage m, Deque<BulkMessage> retries, BulkReport report) throws IOException {
+		boolean retry = m.attempts < NUMBER_OF_PUBLISH_RETRIES;
+		if (m.error instanceof AsyncPublisher.UnconfirmedException && m.resends < NUMBER_OF_RESENDS) {
+			// Lost with the connection, not rejected: send it again on the new connection
+			LOGGER.debug("Resending " + m.file + " after the connection was lost");
+			m.resends++;
+			m.attempts--;
+			retries.add(m);
+			return false;
+		}
+		if (m.error != null) {
+			LOGGER.warn("No reply for " + m.file + " (attempt " + m.attempts + "): " + m.error);
+			if (retry) {
+				retries.add(m);
+			} else {
+				report.add(m.file.getPath(), m.beskedId, m.transactionId, m.attempts, -1, m.latency, m.bytes.length, m.error.toString());
+			}
+			return false;
+		}
+		int statusKode = m.output.getStatusKode().intValue();
+		if (statusKode == 41 && retry) {
+			retries.add(m);
+			return true;
+		}
+		if (statusKode == 20) {
+			// Keep the sent message in the journal, using the bytes that were published
+			journal.append(m.bytes);
+		} else {
+			LOGGER.error("Call for " + m.file + " returned status code: " + statusKode + " - " + m.output.getFejlbeskedTekst());
+		}
+		report.add(m.file.getPath(), m.beskedId, m.transactionId, m.attempts, statusKode, m.latency, m.bytes.length, m.output.getFejlbeskedTekst());
+		return statusKode == 41;
+	}
+
+	/**
+	 * Compiles a message file into a {@link MessageTemplate}, and generates messages from it without unmarshalling or
+	 * marshalling. The message is set up like {@link #setupMessage(HaendelsesbeskedType)} does, and each message gets a
+	 * new BeskedId and the current time as Dannelsestidspunkt.
+	 *
+	 * @param fileName the message file
+	 * @param count the number of messages to generate
+	 * @return the generated messages
+	 * @throws IOException thrown if the file cannot be read, or the message cannot be set up
+	 */
+	private static BulkSource generateMessages(String fileName, int count) throws IOException {
+		MessageTemplate template = MessageTemplate.compile(Files.readAllBytes(Paths.get(fileName)));
+		if (!template.hasSlot(MessageTemplate.Slot.BESKED_ID) || !template.hasSlot(MessageTemplate.Slot.DANNELSESTIDSPUNKT)) {
+			throw new IOException("Message " + fileName + " has no BeskedId or Dannelsestidspunkt");
+		}
+		MessageTemplate.Renderer renderer = template.renderer();
+		if (anvendersystemId != null) {
+			renderer.set(MessageTemplate.Slot.BESKED_ANSVARLIG_AKTOER, anvendersystemId);
+		}
+		String cvr = SamplesHelper.URN_OIO_CVRNR_PREFIX + SamplesHelper.requestCVRNumber;
+		if (overrideCVRNumber) {
+			LOGGER.info("Overriding CVR number for TilladtModtager and ObjektAnsvarligMyndighed in message with supplied CVR number " + SamplesHelper.requestCVRNumber);
+			renderer.set(MessageTemplate.Slot.TILLADT_MODTAGER, cvr).set(MessageTemplate.Slot.OBJEKT_ANSVARLIG_MYNDIGHED, cvr);
+		} else if (!cvr.equals(template.getDefault(MessageTemplate.Slot.OBJEKT_ANSVARLIG_MYNDIGHED))) {
+			throw new IOException("CVR number " + cvr + " not equal to municipiality id in message: " + template.getDefault(MessageTemplate.Slot.OBJEKT_ANSVARLIG_MYNDIGHED));
+		}
+
+		File file = new File(fileName);
+		int[] generated = {0};
+		return report -> {
+			if (generated[0] == count) {
+				return null;
+			}
+			generated[0]++;
+			String beskedId = UUID.randomUUID().toString();
+			byte[] bytes = renderer.set(MessageTemplate.Slot.BESKED_ID, beskedId)
+					.setTimestamp(MessageTemplate.Slot.DANNELSESTIDSPUNKT, System.currentTimeMillis())
+					.render();
+			return new BulkMessage(file, beskedId, bytes);
+		};
+	}
+
+	/**
+	 * Loads and sets up a message of a bulk send. A message that cannot be read is reported as failed.
+	 *
+	 * @return the message ready to publish, or null if it could not be read
+	 */
+	private static BulkMessage readBulkMessage(File file, BulkReport report) throws IOException {
+		try {
+			HaendelsesbeskedType haendelsesbesked = loadHaendelsesBeskedFromFile(file.getPath());
+			setupMessage(haendelsesbesked);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			JaxbCodec.forType(HaendelsesbeskedType.class).marshal(haendelsesbesked, bytes, SamplesHelper.HAENDELSESBESKED_QNAME);
+			String beskedId = haendelsesbesked.getBeskedId() != null ? haendelsesbesked.getBeskedId().getUUIDIdentifikator() : null;
+			return new BulkMessage(file, beskedId, bytes.toByteArray());
+		} catch (Exception e) {
+			LOGGER.error("Could not read message " + file + ", skipping it", e);
+			report.add(file.getPath(), null, null, 0, -1, 0, 0, e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the files to send in bulk, from {@link #messageDirectory}, {@link #messageGlob} and {@link #messageList}
+	 * @throws IOException thrown if the directory or file list cannot be read
+	 */
+	private static List<File> listMessageFiles() throws IOException {
+		List<File> files = new ArrayList<File>();
+		if (messageDirectory != null) {
+			File[] xmlFiles = new File(messageDirectory).listFiles((dir, name) -> name.endsWith(".xml"));
+			if (xmlFiles == null) {
+				throw new FileNotFoundException("Message directory " + messageDirectory + " does not exist");
+			}
+			Arrays.sort(xmlFiles);
+			files.addAll(Arrays.asList(xmlFiles));
+		}
+		if (messageGlob != null) {
+			// Walk from the part of the pattern before the first wildcard
+			String pattern = messageGlob.replace('\\', '/');
+			int wildcard = pattern.length();
+			for (char c : new char[] {'*', '?', '[', '{'}) {
+				if (pattern.indexOf(c) >= 0) {
+					wildcard = Math.min(wildcard, pattern.indexOf(c));
+				}
+			}
+			int slash = pattern.lastIndexOf('/', wildcard);
+			Path root = Paths.get(slash >= 0 ? pattern.substring(0, slash + 1) : ".");
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash >= 0 ? pattern : "./" + pattern));
+			try (Stream<Path> paths = Files.walk(root)) {
+				paths.filter(p -> Files.isRegularFile(p) && matcher.matches(p)).sorted().forEach(p -> files.add(p.toFile()));
+			}
+		}
+		if (messageList != null) {
+			BufferedReader in = "-".equals(messageList) ? new BufferedReader(new InputStreamReader(System.in, Charset.forName("UTF-8")))
+					: Files.newBufferedReader(Paths.get(messageList), Charset.forName("UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (!line.trim().isEmpty()) {
+						files.add(new File(line.trim()));
+					}
+				}
+			} finally {
+				// Standard input is left open
+				if (!"-".equals(messageList)) {
+					in.close();
+				}
+			}
+		}
+		return files;
+	}
+
 	/**
 	 * Convenience method calling {@link #closeConnection()}, {@link #fetchToken()} and {@link #openConnection()} in that order.
 	 *
@@ -436,56 +802,36 @@ public class AfsendBesked {
 
 
 	/**
-	 * Opens connection using parameters from {@link SamplesHelper}, setting up token for connection establishment.
+	 * Gets a channel from the {@link AmqpConnectionPool}, which opens a connection using parameters from {@link SamplesHelper}
+	 * and the token if there is none for the token yet, and sets up the {@link AsyncPublisher} on it.
 	 *
 	 * @throws Exception thrown if errors occur while attempting to connect
 	 */
 	private static void openConnection() throws Exception {
-		// Setup AMQP connection
-		LOGGER.debug("Opening connection to AMQP host on " + SamplesHelper.beskedfordelerHostname + ":" + SamplesHelper.beskedfordelerPortnumber);
-
-		ConnectionFactory factory = new ConnectionFactory();
-		factory.setHost(SamplesHelper.beskedfordelerHostname);
-		factory.setPort(SamplesHelper.beskedfordelerPortnumber);
-
-		SSLContext sc = SSLContext.getInstance("TLS");
-		TrustManager[] tm = SamplesHelper.getTrustManagers();
-		KeyManager[] km = SamplesHelper.getKeyManagers();
-
-		sc.init(km, tm, new java.security.SecureRandom());
-		factory.useSslProtocol(sc);
-
-		factory.setVirtualHost(SamplesHelper.BESKEDFORDELER_RABBITMQ_VIRTUAL_HOST);
-
-		// Setup SASL config using security-token
-		factory.setSaslConfig(new TokenSaslConfig(decodedToken));
-
-		// Open AMQP connection
-		conn = factory.newConnection();
-		channel = conn.createChannel();
+		channel = recovery.open();
 	}
 
 	/**
-	 * Closes channel and connection to AMQP
+	 * Gives the channel back to the {@link AmqpConnectionPool}, which keeps the connection open for reuse
 	 */
 	private static void closeConnection() {
-		// Close AMPQ connection when no used anymore (reuse same connection for multiple messages for performance)
 		LOGGER.debug("Closing connection");
-		try {
-			channel.close();
-			conn.close();
-		} catch (Exception e) {
-			LOGGER.warn("Caught exception closing connection", e);
+		if (publisher != null) {
+			publisher.close();
 		}
+		AmqpConnectionPool.shared().releaseChannel(channel);
 	}
 
 	/**
-	 * Closes and reopens connection to AMQP.
+	 * Closes the connection to AMQP after a failure, and opens a new one with the {@link RecoveryManager}, waiting
+	 * longer between each failed attempt.
 	 */
 	private static void reopenConnection() throws Exception {
 		LOGGER.debug("Reopening connection");
-		closeConnection();
-		openConnection();
+		if (publisher != null) {
+			publisher.close();
+		}
+		channel = recovery.recover(channel);
 	}
 
 	/**
@@ -513,18 +859,22 @@ public class AfsendBesked {
 
 	}
 
-	public static void validateXML(String fileName) {
+	/**
+	 * Validates an XML file against the Beskedkuvert schema, logging the violations if it is not valid.
+	 *
+	 * @param fileName
+	 * @return true if the file is valid
+	 */
+	public static boolean validateXML(String fileName) {
 		try {
-			Source xmlFile = new StreamSource(new File(fileName));
-			File schemaFile = new File("src\\main\\resources\\xsd\\Beskedkuvert.xsd");
-
-			SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-			Schema schema = schemaFactory.newSchema(schemaFile);
-			Validator validator = schema.newValidator();
-			validator.validate(xmlFile);
+			SchemaValidator.Result result = SchemaValidator.beskedkuvert().validate(new StreamSource(new File(fileName)));
+			if (!result.isValid()) {
+				LOGGER.error("Message " + fileName + " is " + result);
+			}
+			return result.isValid();
 		} catch (SAXException | IOException e) {
-			LOGGER.error(e.getMessage());
-			System.exit(1);
+			LOGGER.error("Caught exception validating file \"" + fileName + "\"", e);
+			return false;
 		}
 	}
 
@@ -0,0 +1,246 @@
+package dk.kombit.samples.beskedfordeler.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import dk.kombit.samples.SamplesHelper;
+import dk.kombit.samples.SecurityContext;
+
+/**
+ * Pool of AMQP connections to Beskedfordeler and the channels on them, shared by the clients in a JVM.
+ *
+ * A connection is authenticated with a security token when it is opened, so connections are pooled per virtual host
+ * and token; a client with a renewed token gets a new connection, and the connection of the old token is closed when
+ * it has been unused for a while. All connections use the SSLContext of {@link SecurityContext}, so the key material
+ * is not loaded again and TLS sessions can be resumed. Channels given back with {@link #releaseChannel(Channel)} are
+ * kept open and handed out again, so they must not have consumers left on them; a channel whose deliveries are not
+ * all settled should be given back with {@link #closeChannel(Channel)}.
+ */
+public final class AmqpConnectionPool implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AmqpConnectionPool.class);
+
+	private static final int MAX_IDLE_CHANNELS = 8;
+	private static final long IDLE_CONNECTION_MSECS = 60000;
+
+	private static final AmqpConnectionPool shared = new AmqpConnectionPool(MAX_IDLE_CHANNELS, IDLE_CONNECTION_MSECS);
+
+	private final int maxIdleChannels;
+	private final long idleConnectionMsecs;
+	private final Map<String, PooledConnection> connections = new HashMap<String, PooledConnection>();
+	private final Map<Channel, PooledConnection> borrowed = new IdentityHashMap<Channel, PooledConnection>();
+
+	private static class PooledConnection {
+		final String key;
+		final Connection connection;
+		final Deque<Channel> idle = new ArrayDeque<Channel>();
+		int borrowed = 0;
+		long lastUsed = System.currentTimeMillis();
+
+		PooledConnection(String key, Connection connection) {
+			this.key = key;
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * @param maxIdleChannels the number of unused channels kept open per connection
+	 * @param idleConnectionMsecs how long a connection without borrowed channels is kept open
+	 */
+	public AmqpConnectionPool(int maxIdleChannels, long idleConnectionMsecs) {
+		this.maxIdleChannels = maxIdleChannels;
+		this.idleConnectionMsecs = idleConnectionMsecs;
+	}
+
+	/**
+	 * @return the pool shared by the clients in this JVM
+	 */
+	public static AmqpConnectionPool shared() {
+		return shared;
+	}
+
+	/**
+	 * Gets a channel on a connection authenticated with a token, opening the connection if there is none.
+	 * @param virtualHost the virtual host to connect to
+	 * @param decodedToken the security token to authenticate the connection with
+	 * @return an open channel, to be given back with {@link #releaseChannel(Channel)}, {@link #closeChannel(Channel)} or {@link #invalidate(Channel)}
+	 * @throws IOException thrown if a connection or channel cannot be opened
+	 */
+	public synchronized Channel borrowChannel(String virtualHost, String decodedToken) throws IOException {
+		closeIdleConnections();
+		String key = virtualHost + "|" + identity(decodedToken);
+		PooledConnection pooled = connections.get(key);
+		if (pooled != null && !pooled.connection.isOpen()) {
+			LOGGER.debug("Connection to virtual host " + virtualHost + " has been closed, opening a new one");
+			remove(pooled);
+			pooled = null;
+		}
+		if (pooled == null) {
+			pooled = new PooledConnection(key, open(virtualHost, decodedToken));
+			connections.put(key, pooled);
+		}
+
+		Channel channel = pooled.idle.poll();
+		while (channel != null && !channel.isOpen()) {
+			channel = pooled.idle.poll();
+		}
+		if (channel == null) {
+			channel = pooled.connection.createChannel();
+		}
+		pooled.borrowed++;
+		pooled.lastUsed = System.currentTimeMillis();
+		borrowed.put(channel, pooled);
+		return channel;
+	}
+
+	/**
+	 * Gives back a channel to be used again. The caller must have cancelled its consumers on the channel.
+	 * @param channel a channel from {@link #borrowChannel(String, String)}
+	 */
+	public synchronized void releaseChannel(Channel channel) {
+		PooledConnection pooled = giveBack(channel);
+		if (pooled != null && channel.isOpen() && pooled.connection.isOpen() && pooled.idle.size() < maxIdleChannels) {
+			pooled.idle.add(channel);
+		} else {
+			close(channel);
+		}
+	}
+
+	/**
+	 * Closes a channel, keeping its connection for other channels.
+	 * @param channel a channel from {@link #borrowChannel(String, String)}
+	 */
+	public synchronized void closeChannel(Channel channel) {
+		giveBack(channel);
+		close(channel);
+	}
+
+	/**
+	 * Closes the connection of a channel that failed, so the next {@link #borrowChannel(String, String)} opens a new one.
+	 * Other channels on the connection are closed as well.
+	 * @param channel a channel from {@link #borrowChannel(String, String)}
+	 */
+	public synchronized void invalidate(Channel channel) {
+		PooledConnection pooled = giveBack(channel);
+		close(channel);
+		if (pooled != null) {
+			remove(pooled);
+		}
+	}
+
+	/**
+	 * Closes all connections.
+	 */
+	@Override
+	public synchronized void close() {
+		for (PooledConnection pooled : new ArrayList<PooledConnection>(connections.values())) {
+			remove(pooled);
+		}
+		borrowed.clear();
+	}
+
+	private PooledConnection giveBack(Channel channel) {
+		PooledConnection pooled = borrowed.remove(channel);
+		if (pooled == null) {
+			LOGGER.warn("Channel " + channel + " was not borrowed from the pool");
+			return null;
+		}
+		pooled.borrowed--;
+		pooled.lastUsed = System.currentTimeMillis();
+		return pooled;
+	}
+
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		for (PooledConnection pooled : connections.values()) {
+			if (pooled.borrowed == 0 && now - pooled.lastUsed >= idleConnectionMsecs) {
+				expired.add(pooled);
+			}
+		}
+		for (PooledConnection pooled : expired) {
+			LOGGER.debug("Closing connection unused for " + (now - pooled.lastUsed) + " ms");
+			remove(pooled);
+		}
+	}
+
+	private void remove(PooledConnection pooled) {
+		if (connections.get(pooled.key) == pooled) {
+			connections.remove(pooled.key);
+		}
+		Iterator<Map.Entry<Channel, PooledConnection>> it = borrowed.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue() == pooled) {
+				it.remove();
+			}
+		}
+		pooled.idle.clear();
+		try {
+			if (pooled.connection.isOpen()) {
+				pooled.connection.close();
+			}
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception closing connection", e);
+		}
+	}
+
+	private static void close(Channel channel) {
+		try {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		} catch (Exception e) {
+			LOGGER.warn("Caught exception closing channel", e);
+		}
+	}
+
+	private static Connection open(String virtualHost, String decodedToken) throws IOException {
+		LOGGER.debug("Opening connection to AMQP host on " + SamplesHelper.beskedfordelerHostname + ":" + SamplesHelper.beskedfordelerPortnumber);
+		long start = System.currentTimeMillis();
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(SamplesHelper.beskedfordelerHostname);
+		factory.setPort(SamplesHelper.beskedfordelerPortnumber);
+		factory.useSslProtocol(SecurityContext.get().getSslContext());
+		factory.setVirtualHost(virtualHost);
+
+		// Setup SASL config using security-token
+		factory.setSaslConfig(new TokenSaslConfig(decodedToken));
+
+		Connection connection = factory.newConnection();
+		LOGGER.debug("Connection opened in " + (System.currentTimeMillis() - start) + " ms");
+		return connection;
+	}
+
+	/**
+	 * @return a digest identifying the token, so the token itself is not kept as a key
+	 */
+	private static String identity(String decodedToken) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(decodedToken.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package dk.kombit.samples.beskedfordeler.amqp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.xml.bind.JAXBException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import dk.kombit.samples.JaxbCodec;
+import dk.kombit.samples.SamplesHelper;
+import oio.sagdok._3_0.StandardReturType;
+
+/**
+ * Publishes messages to Beskedfordeler as RPC calls on one channel, with many calls outstanding at a time.
+ *
+ * One consumer on the Direct Reply pseudo queue and one {@link ReturnListener} are set up for the lifetime of the
+ * channel, and replies are paired with their calls through a map from correlationId to the pending call's future.
+ * {@link #publish(byte[], String, String)} only waits when windowSize calls are already outstanding, so the throughput
+ * is bounded by the window and not by the round trip time of a single call. A call is completed exceptionally if the
+ * message is returned by the broker, if no reply arrives within the timeout ({@link TimeoutException}) or if the
+ * channel is closed; the caller decides whether to retry. Calls that were never answered because the channel was
+ * lost fail with {@link UnconfirmedException}, and can be published again on a new channel.
+ */
+public class AsyncPublisher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncPublisher.class);
+
+	private final Channel channel;
+	private final long replyTimeoutMsecs;
+	private final Semaphore window;
+	private final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private final JaxbCodec<StandardReturType> codec;
+	private final ScheduledExecutorService timeouts;
+	private final ReturnListener returnListener;
+	private final String consumerTag;
+	private volatile boolean closed = false;
+
+	/**
+	 * The call was not answered because the channel was closed; the message may or may not have been received.
+	 */
+	public static class UnconfirmedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UnconfirmedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private static class Pending {
+		final CompletableFuture<StandardReturType> future = new CompletableFuture<StandardReturType>();
+		final long deadline;
+
+		Pending(long deadline) {
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Sets up the reply consumer and return listener on a channel.
+	 * @param channel the channel to publish on, not to be used for other consumers on the reply queue
+	 * @param windowSize the maximum number of calls outstanding at a time
+	 * @param replyTimeoutMsecs how long to wait for the reply to a call
+	 * @throws IOException thrown if the reply consumer cannot be set up
+	 */
+	public AsyncPublisher(Channel channel, int windowSize, long replyTimeoutMsecs) throws IOException {
+		this.channel = channel;
+		this.replyTimeoutMsecs = replyTimeoutMsecs;
+		this.window = new Semaphore(Math.max(1, windowSize));
+		try {
+			this.codec = JaxbCodec.forType(StandardReturType.class);
+		} catch (JAXBException e) {
+			throw new IOException(e);
+		}
+
+		// A message that cannot be routed is returned before (instead of) the reply
+		returnListener = (replyCode, replyText, exchange, routingKey, properties, body) -> {
+			LOGGER.error("The message was silently dropped, with reply code: " + replyCode + " exchange: " + exchange + " routingKey: " + routingKey);
+			fail(properties.getCorrelationId(), new IOException("Message returned by broker: " + replyCode + " " + replyText));
+		};
+		channel.addReturnListener(returnListener);
+		consumerTag = channel.basicConsume(SamplesHelper.PUBLISH_REPLY_QUEUE, true, new ReplyConsumer(channel));
+
+		long sweepMsecs = Math.max(10, replyTimeoutMsecs / 10);
+		timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "publish-timeout");
+			t.setDaemon(true);
+			return t;
+		});
+		timeouts.scheduleWithFixedDelay(this::expire, sweepMsecs, sweepMsecs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Publishes a message, waiting first if the window is full.
+	 * @param body the message
+	 * @param transactionId the transaction the message belongs to, sent as messageId
+	 * @param token the security token to send in the message header
+	 * @return future completed with the reply, or exceptionally if the call failed
+	 * @throws InterruptedException thrown if interrupted while waiting for room in the window
+	 */
+	public CompletableFuture<StandardReturType> publish(byte[] body, String transactionId, String token) throws InterruptedException {
+		window.acquire();
+		String corrId = UUID.randomUUID().toString(); // CorrelationId for the RPC-call, used to pair with request and response
+		Pending call = new Pending(System.currentTimeMillis() + replyTimeoutMsecs);
+		call.future.whenComplete((output, e) -> window.release());
+		if (closed) {
+			call.future.completeExceptionally(new UnconfirmedException("Publisher is closed", null));
+			return call.future;
+		}
+		pending.put(corrId, call);
+
+		// Add security-token to the message header
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("token", token);
+
+		AMQP.BasicProperties props = new AMQP.BasicProperties
+				.Builder()
+				.correlationId(corrId)
+				// reply to property have to be set to point to pseudo queue associated with the channel (Direct Reply method)
+				.replyTo(SamplesHelper.PUBLISH_REPLY_QUEUE)
+				// custom headers: token have to be passed to the processing service in message header
+				.headers(headers)
+				.messageId(transactionId)
+				.build();
+
+		LOGGER.debug("publish: Publishing message with transactionId=" + transactionId + " correlationId=" + corrId);
+		try {
+			// Frames of concurrent publishes must not be interleaved on the channel
+			synchronized (channel) {
+				channel.basicPublish(SamplesHelper.PUBLISH_EXCHANGE_NAME, SamplesHelper.DISTRIBUTION_QUEUE_NAME, true, false, props, body);
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(corrId, channel.isOpen() ? e : new UnconfirmedException("Channel closed", e));
+		}
+		return call.future;
+	}
+
+	/**
+	 * @return the number of calls waiting for a reply
+	 */
+	public int getOutstanding() {
+		return pending.size();
+	}
+
+	/**
+	 * Stops the reply consumer and fails the calls still waiting for a reply. The channel is left open.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		timeouts.shutdownNow();
+		try {
+			if (channel.isOpen()) {
+				channel.basicCancel(consumerTag);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Caught exception cancelling reply consumer", e);
+		}
+		channel.removeReturnListener(returnListener);
+		failAll(new UnconfirmedException("Publisher is closed", null));
+	}
+
+	private void fail(String corrId, Throwable e) {
+		Pending call = corrId != null ? pending.remove(corrId) : null;
+		if (call != null) {
+			call.future.completeExceptionally(e);
+		}
+	}
+
+	private void failAll(Throwable e) {
+		for (String corrId : pending.keySet()) {
+			fail(corrId, e);
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Pending> e = it.next();
+			if (e.getValue().deadline <= now) {
+				it.remove();
+				e.getValue().future.completeExceptionally(new TimeoutException("Received no reply within timeout of " + replyTimeoutMsecs + " ms"));
+			}
+		}
+	}
+
+	/**
+	 * Receives the replies to all calls on the channel.
+	 */
+	private class ReplyConsumer extends DefaultConsumer {
+		ReplyConsumer(Channel channel) {
+			super(channel);
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+			String corrId = properties.getCorrelationId();
+			Pending call = corrId != null ? pending.remove(corrId) : null;
+			if (call == null) {
+				// The call has timed out, or belongs to an earlier publisher on the channel
+				LOGGER.debug("Ignoring reply with unknown correlation id " + corrId);
+				return;
+			}
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Received reply for request with correlation id " + corrId + ":\n***\n" + new String(body, "UTF-8") + "\n***");
+			}
+			try {
+				call.future.complete(codec.unmarshal(body));
+			} catch (JAXBException | RuntimeException e) {
+				call.future.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+			failAll(new UnconfirmedException("Channel closed", sig));
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package dk.kombit.samples.beskedfordeler.amqp;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Result report of a bulk send: one line per message with its statusKode and latency, and a summary.
+ *
+ * The report is written as semicolon separated values with a header line. The status is the statusKode of the
+ * reply, or -1 if no reply was received, in which case the last error is given instead of the FejlbeskedTekst.
+ */
+public class BulkReport implements Closeable {
+	private final Writer out;
+	private final long started = System.currentTimeMillis();
+	private long[] latencies = new long[1024];
+	private int count = 0;
+	private int succeeded = 0;
+	private long bytes = 0;
+
+	/**
+	 * @param file the report file, overwritten if it exists
+	 * @throws IOException thrown if the report cannot be created
+	 */
+	public BulkReport(File file) throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		out.write("file;beskedId;transactionId;attempts;statusKode;latencyMs;fejlbeskedTekst\n");
+	}
+
+	/**
+	 * Records the result of a message.
+	 * @param file the message file
+	 * @param beskedId the BeskedId of the message, or null if it could not be read
+	 * @param transactionId the transactionId the message was published with
+	 * @param attempts the number of times the message was published
+	 * @param statusKode the statusKode of the reply, -1 if there was none
+	 * @param latencyMsecs the time from publishing to the reply (of the last attempt)
+	 * @param size the size of the message in bytes
+	 * @param text FejlbeskedTekst of the reply, or the error if there was no reply
+	 * @throws IOException thrown if the report cannot be written
+	 */
+	public synchronized void add(String file, String beskedId, String transactionId, int attempts, int statusKode, long latencyMsecs,
+			int size, String text) throws IOException {
+		out.write(field(file) + ";" + field(beskedId) + ";" + field(transactionId) + ";" + attempts + ";" + statusKode + ";"
+				+ latencyMsecs + ";" + field(text) + "\n");
+		if (statusKode == 20) {
+			succeeded++;
+			bytes += size;
+		}
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = latencyMsecs;
+	}
+
+	/**
+	 * @return the summary of the messages recorded so far
+	 */
+	public synchronized String summary() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - started);
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		return count + " messages in " + elapsed + " ms, " + succeeded + " succeeded, " + (count - succeeded) + " failed\n"
+				+ "throughput: " + String.format("%.1f", succeeded * 1000.0 / elapsed) + " messages/s, "
+				+ String.format("%.1f", bytes * 1000.0 / elapsed / 1024) + " KB/s\n"
+				+ "latency ms: p50 " + percentile(sorted, 50) + ", p90 " + percentile(sorted, 90) + ", p99 " + percentile(sorted, 99)
+				+ ", max " + (count > 0 ? sorted[count - 1] : 0);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1)];
+	}
+
+	private static String field(String value) {
+		if (value == null) {
+			return "";
+		}
+		String v = value.replace('\n', ' ').replace('\r', ' ');
+		return v.indexOf(';') >= 0 || v.indexOf('"') >= 0 ? "\"" + v.replace("\"", "\"\"") + "\"" : v;
+	}
+}
@@ -0,0 +1,179 @@
+package dk.kombit.samples.beskedfordeler.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Opens the channel of a client and opens it again when it is lost, waiting longer between each failed attempt.
+ *
+ * The wait before attempt n is random between 0 and min(maxBackoff, initialBackoff * 2^n) ("full jitter"), so many
+ * clients losing their connection at the same time do not reconnect in step. The token is taken from the token
+ * source on every attempt, which is expected to return the current token and only get a new one when it has
+ * expired. After a channel has been opened, the {@link Topology} of the client is set up on it again (e.g.
+ * basicQos and basicConsume on its queues). Connections and channels come from the {@link AmqpConnectionPool}.
+ * The number of recoveries and the time they took are kept, so the cost of broker outages can be seen.
+ */
+public class RecoveryManager {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecoveryManager.class);
+
+	/**
+	 * Sets up what a client needs on a new channel.
+	 */
+	public interface Topology {
+		/**
+		 * @param channel the new channel
+		 * @throws IOException thrown if the channel cannot be set up, the attempt is then retried on a new channel
+		 */
+		void setUp(Channel channel) throws IOException;
+	}
+
+	private final String virtualHost;
+	private final Callable<String> tokenSource;
+	private final Topology topology;
+	private final long initialBackoffMsecs;
+	private final long maxBackoffMsecs;
+	private final long timeoutMsecs;
+
+	private long recoveries = 0;
+	private long failedAttempts = 0;
+	private long lastRecoveryMsecs = 0;
+	private long maxRecoveryMsecs = 0;
+	private long totalRecoveryMsecs = 0;
+
+	/**
+	 * @param virtualHost the virtual host to connect to
+	 * @param tokenSource returns the (decoded) token to authenticate with
+	 * @param topology sets up the client's consumers etc. on each new channel
+	 * @param initialBackoffMsecs the longest wait before the first retry
+	 * @param maxBackoffMsecs the longest wait between attempts
+	 * @param timeoutMsecs give up when the channel could not be opened within this time
+	 */
+	public RecoveryManager(String virtualHost, Callable<String> tokenSource, Topology topology, long initialBackoffMsecs,
+			long maxBackoffMsecs, long timeoutMsecs) {
+		this.virtualHost = virtualHost;
+		this.tokenSource = tokenSource;
+		this.topology = topology;
+		this.initialBackoffMsecs = Math.max(1, initialBackoffMsecs);
+		this.maxBackoffMsecs = Math.max(this.initialBackoffMsecs, maxBackoffMsecs);
+		this.timeoutMsecs = timeoutMsecs;
+	}
+
+	/**
+	 * Opens the channel for the first time, retrying like {@link #recover(Channel)}.
+	 * @return the new channel, with the topology set up
+	 * @throws IOException thrown if the channel could not be opened within the timeout
+	 * @throws InterruptedException thrown if interrupted while waiting to retry
+	 */
+	public Channel open() throws IOException, InterruptedException {
+		return connect(false);
+	}
+
+	/**
+	 * Drops a failed channel and its connection, and opens a new channel.
+	 * @param failed the channel that was lost, or null
+	 * @return the new channel, with the topology set up
+	 * @throws IOException thrown if the channel could not be opened within the timeout
+	 * @throws InterruptedException thrown if interrupted while waiting to retry
+	 */
+	public Channel recover(Channel failed) throws IOException, InterruptedException {
+		if (failed != null) {
+			AmqpConnectionPool.shared().invalidate(failed);
+		}
+		return connect(true);
+	}
+
+	/**
+	 * @return the number of times a lost channel was opened again
+	 */
+	public synchronized long getRecoveries() {
+		return recoveries;
+	}
+
+	/**
+	 * @return the number of attempts to open a channel that failed
+	 */
+	public synchronized long getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	/**
+	 * @return the time the last recovery took
+	 */
+	public synchronized long getLastRecoveryMsecs() {
+		return lastRecoveryMsecs;
+	}
+
+	/**
+	 * @return the time the longest recovery took
+	 */
+	public synchronized long getMaxRecoveryMsecs() {
+		return maxRecoveryMsecs;
+	}
+
+	/**
+	 * @return the time spent recovering in total
+	 */
+	public synchronized long getTotalRecoveryMsecs() {
+		return totalRecoveryMsecs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return recoveries+" recoveries in "+totalRecoveryMsecs+" ms (last "+lastRecoveryMsecs+" ms, max "+maxRecoveryMsecs+" ms), "
+				+failedAttempts+" failed attempts";
+	}
+
+	private Channel connect(boolean recovering) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		int attempt = 0;
+		while (true) {
+			Channel channel = null;
+			try {
+				channel = AmqpConnectionPool.shared().borrowChannel(virtualHost, tokenSource.call());
+				topology.setUp(channel);
+				long elapsed = System.currentTimeMillis() - start;
+				if (recovering) {
+					recovered(elapsed);
+					LOGGER.info("Channel recovered after "+(attempt+1)+" attempts in "+elapsed+" ms");
+				}
+				return channel;
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				synchronized (this) {
+					failedAttempts++;
+				}
+				if (channel != null) {
+					AmqpConnectionPool.shared().invalidate(channel);
+				}
+				long elapsed = System.currentTimeMillis() - start;
+				if (elapsed >= timeoutMsecs) {
+					throw new IOException("Could not open channel within "+timeoutMsecs+" ms ("+(attempt+1)+" attempts)", e);
+				}
+				long backoff = ThreadLocalRandom.current().nextLong(backoffCeiling(attempt) + 1);
+				backoff = Math.min(backoff, timeoutMsecs - elapsed);
+				LOGGER.warn("Attempt "+(attempt+1)+" to open channel failed ("+e+"), retrying in "+backoff+" ms");
+				Thread.sleep(backoff);
+				attempt++;
+			}
+		}
+	}
+
+	private long backoffCeiling(int attempt) {
+		// Shifting stops doubling well before it could overflow
+		return attempt >= 30 ? maxBackoffMsecs : Math.min(maxBackoffMsecs, initialBackoffMsecs << attempt);
+	}
+
+	private synchronized void recovered(long elapsed) {
+		recoveries++;
+		lastRecoveryMsecs = elapsed;
+		maxRecoveryMsecs = Math.max(maxRecoveryMsecs, elapsed);
+		totalRecoveryMsecs += elapsed;
+	}
+}
@@ -3,24 +3,26 @@ package dk.kombit.samples.beskedfordeler.anvendersystem;
 
 import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedInputType;
 import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedOutputType;
-import dk.kombit.bf.anvendersystem.operationer.ObjectFactory;
-import dk.kombit.samples.beskedfordeler.SimpelPersistering;
+import dk.kombit.samples.JaxbCodec;
+import dk.kombit.samples.SamplesHelper;
 import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
-import oio.sagdok._3_0.StandardReturType;
 
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Consumes;
-import javax.xml.bind.JAXBElement;
-import java.math.BigInteger;
+import javax.ws.rs.ServiceUnavailableException;
+import java.io.ByteArrayOutputStream;
 
 /*
- * This sample is build using JAX-RS and would need to be deployed on a server to work.
+ * This sample is build using JAX-RS and would need to be deployed on a server to work, or run standalone with AfleverServer.
+ * Messages are journaled on the request thread, see AfleverBeskedAsync for a variant that does not block it.
+ * The journal and handled beskedIds are configured with system properties, see AfleverStorage.
  */
 
 @Path("/besked")
 public class AfleverBesked {
+    private static final long RETRY_AFTER_SECONDS = 1;
 
     @POST
     @Path("/modtag")
@@ -33,23 +35,51 @@ public class AfleverBesked {
         // Check if message been received before (idempotent handling)
         // and if it has make sure the messages is handles according to
         // the given scenario
-        //...
+        String beskedId = haendelsesbesked.getBeskedId() != null ? haendelsesbesked.getBeskedId().getUUIDIdentifikator() : null;
+        if (beskedId != null && !AfleverStorage.claims.claim(beskedId)) {
+            if (AfleverStorage.claims.isClaimed(beskedId)) {
+                // Another request is journaling the message and may still fail, so this copy is delivered again later
+                throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+            }
+            // Already handled, confirm it again without handling it twice
+            return AfleverStorage.SUCCESS;
+        }
 
         // Handle the message according to the given
         //...
 
-        // Example of simple persistance of the message
-        SimpelPersistering.persistMessage(haendelsesbesked, "haendelsesbesked.xml");
-
+        // Keep the message in the journal
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream besked = new ByteArrayOutputStream();
+            JaxbCodec.forType(HaendelsesbeskedType.class).marshal(haendelsesbesked, besked, SamplesHelper.HAENDELSESBESKED_QNAME);
+            bytes = besked.toByteArray();
+            AfleverStorage.journal.append(bytes);
+            if (beskedId != null && AfleverStorage.persistentDedup) {
+                // Already done unless the sync policy of the journal has been relaxed
+                AfleverStorage.journal.flush();
+            }
+        } catch (Exception e) {
+            // Not confirmed, so the message is delivered again and must then be handled
+            if (beskedId != null) {
+                AfleverStorage.claims.release(beskedId);
+            }
+            throw e;
+        }
 
-        // Build return object
+        // Remember the message as handled before confirming it
+        if (beskedId != null) {
+            AfleverStorage.claims.complete(beskedId);
+            if (AfleverStorage.flushBeforeResponse) {
+                AfleverStorage.processedMessageIds.flush();
+            }
+        }
 
-        ObjectFactory objectFactory = new ObjectFactory();
-        ModtagBeskedOutputType outputType = (ModtagBeskedOutputType)objectFactory.createModtagBeskedOutputType().withStandardRetur(new StandardReturType().withStatusKode(new BigInteger("20")));
-        JAXBElement output;
-        output = objectFactory.createModtagBeskedOutput(outputType);
+        // Only queued for a background thread, so the response is not delayed by validating the message
+        AfleverStorage.validation.inspect(null, bytes);
 
-        return (ModtagBeskedOutputType) output.getValue();
+        // The same response for every message, built once
+        return AfleverStorage.SUCCESS;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package dk.kombit.samples.beskedfordeler.anvendersystem;
+
+import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedInputType;
+import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedOutputType;
+import dk.kombit.bf.anvendersystem.operationer.ObjectFactory;
+import dk.kombit.samples.JaxbCodec;
+import dk.kombit.samples.SamplesHelper;
+import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Variant of AfleverBesked that does not write to disk on the request thread, deploy it instead of AfleverBesked.
+ *
+ * The request thread marshals the message and hands it to a bounded queue, and the request is suspended. One writer
+ * thread takes the messages waiting in the queue, appends them to the journal and forces it to disk once for all of
+ * them (so the sync policy of the journal can be relaxed), and then resumes their requests with a success response
+ * marshalled once at startup. When the queue is full the request is answered at once with 503 Service Unavailable
+ * and Retry-After, so Beskedfordeler delivers the message again later instead of the request waiting for the disk.
+ */
+
+@Path("/besked")
+public class AfleverBeskedAsync {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AfleverBeskedAsync.class);
+
+    // Messages that can wait for the writer, and the most messages forced to disk together
+    private static final String HANDOFF_QUEUE_PROPERTY = "beskedfordeler.handoffqueue";
+    private static final int BATCH_SIZE = 256;
+    // A request not answered within this time (e.g. the disk is stalled) is answered with 503 and delivered again
+    private static final long RESPONSE_TIMEOUT_MSECS = 10000;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final String MEDIA_TYPE = "application/xml";
+
+    private static final BlockingQueue<Modtagelse> handoff = new ArrayBlockingQueue<Modtagelse>(Integer.getInteger(HANDOFF_QUEUE_PROPERTY, 1000));
+    private static final byte[] success;
+
+    /**
+     * A message waiting to be written, and the request to answer when it is.
+     */
+    private static class Modtagelse {
+        final String beskedId;
+        final byte[] besked;
+        final AsyncResponse response;
+
+        Modtagelse(String beskedId, byte[] besked, AsyncResponse response) {
+            this.beskedId = beskedId;
+            this.besked = besked;
+            this.response = response;
+        }
+    }
+
+    static {
+        try {
+            ModtagBeskedOutputType output = AfleverStorage.SUCCESS;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            JaxbCodec.forType(ModtagBeskedOutputType.class).marshal(output, bytes, new ObjectFactory().createModtagBeskedOutput(output).getName());
+            success = bytes.toByteArray();
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        Thread writer = new Thread(AfleverBeskedAsync::write, "aflever-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @POST
+    @Path("/modtag")
+    @Produces(MEDIA_TYPE)
+    @Consumes(MEDIA_TYPE)
+    public void modtagBesked(ModtagBeskedInputType input, @Suspended AsyncResponse response) throws Exception {
+        HaendelsesbeskedType haendelsesbesked = input.getHaendelsesbesked();
+
+        // Check if message been received before (idempotent handling), claiming it until it is on disk
+        String beskedId = haendelsesbesked.getBeskedId() != null ? haendelsesbesked.getBeskedId().getUUIDIdentifikator() : null;
+        if (beskedId != null && !AfleverStorage.claims.claim(beskedId)) {
+            // A copy waiting for the writer may still fail, so this one is delivered again later
+            response.resume(AfleverStorage.claims.isClaimed(beskedId) ? retryLater() : success());
+            return;
+        }
+
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream besked = new ByteArrayOutputStream();
+            JaxbCodec.forType(HaendelsesbeskedType.class).marshal(haendelsesbesked, besked, SamplesHelper.HAENDELSESBESKED_QNAME);
+            bytes = besked.toByteArray();
+        } catch (Exception e) {
+            release(beskedId);
+            throw e;
+        }
+
+        response.setTimeout(RESPONSE_TIMEOUT_MSECS, TimeUnit.MILLISECONDS);
+        response.setTimeoutHandler(r -> r.resume(retryLater()));
+        if (!handoff.offer(new Modtagelse(beskedId, bytes, response))) {
+            // Saturated, answer now so the request does not hold a thread
+            release(beskedId);
+            response.resume(retryLater());
+        }
+    }
+
+    /**
+     * Writes the messages from the queue, forcing them to disk before their requests are answered.
+     */
+    private static void write() {
+        List<Modtagelse> batch = new ArrayList<Modtagelse>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(handoff.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            handoff.drainTo(batch, BATCH_SIZE - 1);
+            Response response;
+            try {
+                // The beskedIds are claimed, so a batch never holds two copies of a message
+                for (Modtagelse m : batch) {
+                    AfleverStorage.journal.append(m.besked);
+                }
+                AfleverStorage.journal.flush();
+                // Only remembered as handled when on disk, so a copy delivered again after a failure is journaled
+                for (Modtagelse m : batch) {
+                    if (m.beskedId != null) {
+                        AfleverStorage.claims.complete(m.beskedId);
+                    }
+                }
+                if (AfleverStorage.flushBeforeResponse) {
+                    AfleverStorage.processedMessageIds.flush();
+                }
+                response = null;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Caught exception writing "+batch.size()+" messages, they will be delivered again", e);
+                for (Modtagelse m : batch) {
+                    release(m.beskedId);
+                }
+                response = retryLater();
+            }
+            for (Modtagelse m : batch) {
+                m.response.resume(response != null ? response : success());
+                if (response == null) {
+                    AfleverStorage.validation.inspect(null, m.besked);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static void release(String beskedId) {
+        if (beskedId != null) {
+            AfleverStorage.claims.release(beskedId);
+        }
+    }
+
+    private static Response success() {
+        return Response.ok(success, MEDIA_TYPE).build();
+    }
+
+    private static Response retryLater() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS).build();
+    }
+}
@@ -0,0 +1,262 @@
+package dk.kombit.samples.beskedfordeler.anvendersystem;
+
+import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedInputType;
+import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedOutputType;
+import dk.kombit.bf.anvendersystem.operationer.ObjectFactory;
+import dk.kombit.samples.JaxbCodec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBException;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs AfleverBesked as a standalone process, without a servlet container.
+ *
+ * The /besked/modtag resource is hosted on the HTTP server of the JDK (com.sun.net.httpserver), which accepts and
+ * reads connections with NIO on one thread and hands each request to a worker. The workers are either a fixed pool
+ * of threads or, on Java 21 and later, a virtual thread per request, so the thread journaling a message does not
+ * limit how many requests can wait for the disk. The journal and handled beskedIds are configured with system
+ * properties as when deployed, see AfleverStorage.
+ */
+public class AfleverServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AfleverServer.class);
+
+    private static final String PATH = "/besked/modtag";
+    private static final String MEDIA_TYPE = "application/xml";
+    private static final int STOP_DELAY_SECONDS = 2;
+    // The body buffer grows from at most this size, whatever length the client claims
+    private static final int INITIAL_BODY_BYTES = 64 * 1024;
+
+    private static String host;
+    private static int port = 8080;
+    private static int backlog = 1024;
+    private static int workers = 2 * Runtime.getRuntime().availableProcessors();
+    private static boolean virtualThreads = false;
+    private static int maxBodyBytes = 16 * 1024 * 1024;
+
+    private static final AfleverBesked resource = new AfleverBesked();
+    private static QName outputName;
+    private static byte[] success;
+
+    public static void main(String[] args) throws Exception {
+        if (!parseArguments(args)) {
+            LOGGER.error("main: Exiting.");
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        // Open the journal and create the JAXB contexts before accepting requests
+        JaxbCodec.warmUp(ModtagBeskedInputType.class, ModtagBeskedOutputType.class);
+        outputName = new ObjectFactory().createModtagBeskedOutput(null).getName();
+        success = marshal(AfleverStorage.SUCCESS);
+
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(workers, r -> new Thread(r, "aflever-http-"+count.incrementAndGet()));
+        }
+
+        HttpServer server = HttpServer.create(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port), backlog);
+        server.createContext(PATH, AfleverServer::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        final ExecutorService workerPool = executor;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(STOP_DELAY_SECONDS);
+            workerPool.shutdown();
+            try {
+                workerPool.awaitTermination(STOP_DELAY_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Nothing more to do while shutting down
+            }
+        }, "aflever-http-shutdown"));
+
+        LOGGER.info("Receiving messages on http://"+(host != null ? host : "*")+":"+port+PATH+" with "
+                +(virtualThreads ? "virtual threads" : workers+" worker threads")
+                +", started in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = readBody(exchange);
+            if (body == null) {
+                LOGGER.warn("Request from "+exchange.getRemoteAddress()+" is larger than "+maxBodyBytes+" bytes");
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+            ModtagBeskedInputType input;
+            try {
+                input = JaxbCodec.forType(ModtagBeskedInputType.class).unmarshal(body);
+            } catch (JAXBException | RuntimeException e) {
+                LOGGER.warn("Could not read request from "+exchange.getRemoteAddress()+": "+e);
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            ModtagBeskedOutputType output;
+            try {
+                output = resource.modtagBesked(input);
+            } catch (WebApplicationException e) {
+                // E.g. 503 for a message that another request is journaling
+                Response error = e.getResponse();
+                if (error.getHeaderString("Retry-After") != null) {
+                    exchange.getResponseHeaders().set("Retry-After", error.getHeaderString("Retry-After"));
+                }
+                exchange.sendResponseHeaders(error.getStatus(), -1);
+                return;
+            }
+            // The resource confirms every message with the same instance, so its response is only marshalled once
+            byte[] response = output == AfleverStorage.SUCCESS ? success : marshal(output);
+            exchange.getResponseHeaders().set("Content-Type", MEDIA_TYPE);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (Exception e) {
+            // Not confirmed, so Beskedfordeler delivers the message again
+            LOGGER.error("Caught exception receiving message", e);
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the body of the request, or null if it is larger than maxBodyBytes
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        long length = -1;
+        try {
+            String header = exchange.getRequestHeaders().getFirst("Content-Length");
+            length = header != null ? Long.parseLong(header.trim()) : -1;
+        } catch (NumberFormatException e) {
+            // Read until the end of the body instead
+        }
+        if (length > maxBodyBytes) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(length > 0 ? length : 8192, INITIAL_BODY_BYTES));
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (body.size() + n > maxBodyBytes) {
+                    return null;
+                }
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] marshal(ModtagBeskedOutputType output) throws JAXBException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JaxbCodec.forType(ModtagBeskedOutputType.class).marshal(output, bytes, outputName);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Virtual threads are looked up by reflection, so the samples still build and run on Java 8.
+     * @return an executor starting a virtual thread per task, or null if the JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warn("Virtual threads need Java 21 or later, using "+workers+" worker threads");
+            virtualThreads = false;
+            return null;
+        }
+    }
+
+    private static boolean parseArguments(String[] args) {
+        boolean parseOk = true;
+        for (int i=0; i < args.length; i++) {
+            if ("-host".equals(args[i])) {
+                if (i < args.length-1) {
+                    i++;
+                    host = args[i];
+                } else {
+                    LOGGER.error("Insufficient arguments to option "+args[i]);
+                    parseOk = false;
+                }
+            } else if ("-port".equals(args[i])) {
+                if (i < args.length-1) {
+                    i++;
+                    port = Integer.parseInt(args[i]);
+                } else {
+                    LOGGER.error("Insufficient arguments to option "+args[i]);
+                    parseOk = false;
+                }
+            } else if ("-backlog".equals(args[i])) {
+                if (i < args.length-1) {
+                    i++;
+                    backlog = Integer.parseInt(args[i]);
+                } else {
+                    LOGGER.error("Insufficient arguments to option "+args[i]);
+                    parseOk = false;
+                }
+            } else if ("-workers".equals(args[i])) {
+                if (i < args.length-1) {
+                    i++;
+                    if ("virtual".equals(args[i])) {
+                        virtualThreads = true;
+                    } else {
+                        workers = Integer.parseInt(args[i]);
+                        virtualThreads = false;
+                    }
+                } else {
+                    LOGGER.error("Insufficient arguments to option "+args[i]);
+                    parseOk = false;
+                }
+            } else if ("-maxbody".equals(args[i])) {
+                if (i < args.length-1) {
+                    i++;
+                    maxBodyBytes = Integer.parseInt(args[i]);
+                } else {
+                    LOGGER.error("Insufficient arguments to option "+args[i]);
+                    parseOk = false;
+                }
+            } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+                System.out.println("usage: \n"+
+                                   "-h | -help: this help message\n"+
+                                   "-host <address>: address to listen on (default: all addresses)\n"+
+                                   "-port <port>: port to listen on (default: "+port+")\n"+
+                                   "-backlog <n>: connections waiting to be accepted (default: "+backlog+")\n"+
+                                   "-workers <n> | virtual: handle requests on <n> threads, or on a virtual thread each (Java 21 or later) (default: "+workers+")\n"+
+                                   "-maxbody <bytes>: largest request accepted, larger requests get 413 (default: "+maxBodyBytes+")\n"+
+                                   "The journal and handled beskedIds are configured with the beskedfordeler.* system properties, see AfleverStorage");
+                System.exit(0);
+            } else {
+                LOGGER.error("Unknown option "+args[i]);
+                parseOk = false;
+            }
+        }
+        if (workers < 1) {
+            LOGGER.error("-workers must be at least 1");
+            parseOk = false;
+        }
+        return parseOk;
+    }
+}
@@ -0,0 +1,110 @@
+package dk.kombit.samples.beskedfordeler.anvendersystem;
+
+import dk.kombit.bf.anvendersystem.operationer.ModtagBeskedOutputType;
+import dk.kombit.bf.anvendersystem.operationer.ObjectFactory;
+import dk.kombit.samples.JaxbCodec;
+import dk.kombit.samples.beskedfordeler.BeskedIdClaims;
+import dk.kombit.samples.beskedfordeler.BeskedIdDedup;
+import dk.kombit.samples.beskedfordeler.DedupIndex;
+import dk.kombit.samples.beskedfordeler.MappedBeskedIdDedup;
+import dk.kombit.samples.beskedfordeler.MessageJournal;
+import dk.kombit.samples.beskedfordeler.ValidationMonitor;
+import dk.kombit.bf.beskedkuvert.HaendelsesbeskedType;
+import oio.sagdok._3_0.StandardReturType;
+
+import javax.xml.bind.JAXBException;
+import org.xml.sax.SAXException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+
+/*
+ * The journal, handled beskedIds and validation of received messages, configured with system properties and shared
+ * by AfleverBesked and AfleverBeskedAsync, so only one journal writer is ever open on the directory.
+ */
+final class AfleverStorage {
+
+    // Handled beskedIds are kept in this file across restarts if the system property is set, otherwise only in memory
+    private static final String DEDUP_FILE_PROPERTY = "beskedfordeler.dedupfile";
+    // How often the file is forced to disk, 0 to force it before each response
+    private static final String DEDUP_FLUSH_PROPERTY = "beskedfordeler.dedupflush";
+    private static final int DEDUP_CAPACITY = 1000000;
+    private static final long DEDUP_RETENTION_MSECS = 24 * 3600000L;
+
+    // Received messages are kept in a journal in this directory, forced to disk according to the sync policy ("message", "<n>ms" or "<n>")
+    private static final String JOURNAL_DIRECTORY_PROPERTY = "beskedfordeler.journal";
+    private static final String JOURNAL_SYNC_PROPERTY = "beskedfordeler.journalsync";
+    // Set to true to compress the journal with a dictionary trained from the *.xml files in the samples directory (default: the test messages)
+    private static final String JOURNAL_COMPRESS_PROPERTY = "beskedfordeler.journalcompress";
+    private static final String JOURNAL_SAMPLES_PROPERTY = "beskedfordeler.journalsamples";
+    private static final String JOURNAL_NAME = "aflever";
+    private static final long JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024L;
+    private static final long JOURNAL_SEGMENT_MSECS = 3600000L;
+
+    // Schema validation of received messages for quality monitoring: "off", "sample:<n>", "sample:<n>:beskedtype" or "async"
+    private static final String VALIDATE_PROPERTY = "beskedfordeler.validate";
+
+    static final DedupIndex processedMessageIds;
+    // The handled beskedIds survive a restart, so a message must be on disk before its id is remembered
+    static final boolean persistentDedup;
+    // BeskedIds of the messages being journaled, so concurrent requests with the same message journal it once
+    static final BeskedIdClaims claims;
+    static final MessageJournal journal;
+    static final boolean flushBeforeResponse;
+    static final ValidationMonitor validation;
+    // The response is the same for every message, so it is built once; it must not be modified
+    static final ModtagBeskedOutputType SUCCESS;
+
+    static {
+        // Create the JAXB context used for persisting messages up front instead of on the first request
+        try {
+            JaxbCodec.warmUp(HaendelsesbeskedType.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        String dedupFile = System.getProperty(DEDUP_FILE_PROPERTY);
+        long dedupFlushMsecs = Long.getLong(DEDUP_FLUSH_PROPERTY, 1000);
+        try {
+            if (dedupFile != null) {
+                processedMessageIds = new MappedBeskedIdDedup(new File(dedupFile), DEDUP_CAPACITY, DEDUP_RETENTION_MSECS, dedupFlushMsecs);
+            } else {
+                processedMessageIds = new BeskedIdDedup(DEDUP_CAPACITY, DEDUP_RETENTION_MSECS);
+            }
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        claims = new BeskedIdClaims(processedMessageIds);
+        persistentDedup = dedupFile != null;
+        flushBeforeResponse = dedupFile != null && dedupFlushMsecs <= 0;
+
+        // The response confirms the message as received, so by default it is on disk before responding
+        try {
+            journal = MessageJournal.open(new File(System.getProperty(JOURNAL_DIRECTORY_PROPERTY, "haendelsesbesked-aflever")), JOURNAL_NAME,
+                    MessageJournal.SyncPolicy.parse(System.getProperty(JOURNAL_SYNC_PROPERTY, "message")), JOURNAL_SEGMENT_BYTES, JOURNAL_SEGMENT_MSECS,
+                    Boolean.getBoolean(JOURNAL_COMPRESS_PROPERTY), System.getProperty(JOURNAL_SAMPLES_PROPERTY));
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        try {
+            validation = ValidationMonitor.parse(System.getProperty(VALIDATE_PROPERTY, "off"));
+        } catch (SAXException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        SUCCESS = (ModtagBeskedOutputType) new ObjectFactory().createModtagBeskedOutputType().withStandardRetur(new StandardReturType().withStatusKode(new BigInteger("20")));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            validation.close();
+            try {
+                journal.close();
+                processedMessageIds.close();
+            } catch (IOException e) {
+                // Nothing more to do while shutting down
+            }
+        }, "aflever-shutdown"));
+    }
+
+    private AfleverStorage() {
+    }
+}